@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contour stage of the color pipelines: blob labeling and target selection
+ * on a dilated yellow mask.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BlobBenchmark {
+
+    @Param({"1280x720", "640x360"})
+    public String resolution;
+
+    private final Blobs blobs = new Blobs();
+    private Mat dilated;
+    private Mat labels;
+    private Point previous;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        Mat frame = Util.Image2Mat(Frames.load(resolution)[0]);
+        Mat hsv = new Mat();
+        Imgproc.blur(frame, hsv, Workspace.BLUR_SIZE);
+        Imgproc.cvtColor(hsv, hsv, Imgproc.COLOR_BGR2HSV);
+        Mat mask = new Mat();
+        Core.inRange(hsv, new Scalar(20, 124, 123), new Scalar(30, 256, 256), mask);
+        dilated = new Mat();
+        Imgproc.dilate(mask, dilated, Workspace.DILATE_ELEMENT);
+        labels = new Mat(frame.rows(), frame.cols(), CvType.CV_32SC1);
+        previous = new Point(frame.cols() / 4, frame.rows() / 2);
+        mask.release();
+        hsv.release();
+        frame.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dilated.release();
+        labels.release();
+    }
+
+    @Benchmark
+    public int blobs() {
+        blobs.analyze(dilated, labels, new Point(0, 0));
+        return blobs.select(previous);
+    }
+}
+
+// EOF
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Util#Image2Mat} and {@link Util#Mat2Image}, allocating a new
+ * destination every frame and reusing one.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"1280x720", "640x360"})
+    public String resolution;
+
+    private BufferedImage image;
+    private Mat mat;
+    private BufferedImage reusedImage;
+    private Mat reusedMat;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        image = Frames.load(resolution)[0];
+        mat = Util.Image2Mat(image);
+        reusedMat = new Mat();
+        reusedImage = Util.Mat2Image(mat);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mat.release();
+        reusedMat.release();
+    }
+
+    @Benchmark
+    public Mat image2Mat() {
+        Mat result = Util.Image2Mat(image);
+        result.release();
+        return result;
+    }
+
+    @Benchmark
+    public Mat image2MatReused() {
+        Util.Image2Mat(image, reusedMat);
+        return reusedMat;
+    }
+
+    @Benchmark
+    public BufferedImage mat2Image() {
+        return Util.Mat2Image(mat);
+    }
+
+    @Benchmark
+    public BufferedImage mat2ImageReused() {
+        reusedImage = Util.Mat2Image(mat, reusedImage);
+        return reusedImage;
+    }
+}
+
+// EOF
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Frames for the benchmarks: synthetic scenes generated with a fixed seed
+ * (a yellow and a blue ball and a QR code over a noisy background), or the
+ * recorded frames found in the directory given by the {@code togapp.frames}
+ * system property, scaled to the requested size.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+final class Frames {
+
+    // Frames per set, so every iteration does not see the very same frame
+    static final int COUNT = 8;
+    private static final long SEED = 42L;
+    private static final String QR_TEXT = "TOGApp";
+
+    private Frames() {
+    }
+
+    /**
+     * @param resolution frame size, e.g. "1280x720"
+     * @return the recorded frames if there are any, synthetic ones otherwise
+     */
+    static BufferedImage[] load(String resolution) {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        BufferedImage[] recorded = recorded(width, height);
+        return recorded.length > 0 ? recorded : synthetic(width, height);
+    }
+
+    static BufferedImage[] synthetic(int width, int height) {
+        Random random = new Random(SEED);
+        BufferedImage[] frames = new BufferedImage[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = frame.createGraphics();
+            // Gradient background with some noise
+            for (int y = 0; y < height; y += 4) {
+                for (int x = 0; x < width; x += 4) {
+                    int v = 60 + (x * 80 / width) + random.nextInt(30);
+                    g.setColor(new Color(v, v + 10, v - 20 < 0 ? 0 : v - 20));
+                    g.fillRect(x, y, 4, 4);
+                }
+            }
+            // Objects move a bit from frame to frame
+            int r = height / 12;
+            int dx = i * width / 100;
+            g.setColor(new Color(240, 220, 0));
+            g.fillOval(width / 4 + dx - r, height / 2 - r, 2 * r, 2 * r);
+            g.setColor(new Color(0, 60, 220));
+            g.fillOval(width / 2 + dx - r, height / 3 - r, 2 * r, 2 * r);
+            drawQrCode(g, width * 2 / 3 + dx, height / 2, height / 3);
+            g.dispose();
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    private static void drawQrCode(Graphics2D g, int x, int y, int size) {
+        BitMatrix code;
+        try {
+            code = new QRCodeWriter().encode(QR_TEXT, BarcodeFormat.QR_CODE, size, size);
+        } catch (WriterException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (int j = 0; j < code.getHeight(); j++) {
+            for (int i = 0; i < code.getWidth(); i++) {
+                g.setColor(code.get(i, j) ? Color.BLACK : Color.WHITE);
+                g.fillRect(x + i, y + j, 1, 1);
+            }
+        }
+    }
+
+    private static BufferedImage[] recorded(int width, int height) {
+        String dir = System.getProperty("togapp.frames", "");
+        File[] files = dir.isEmpty() ? null : new File(dir).listFiles((File f, String name)
+                -> name.toLowerCase().endsWith(".png") || name.toLowerCase().endsWith(".jpg"));
+        if (files == null) {
+            return new BufferedImage[0];
+        }
+        Arrays.sort(files);
+        List<BufferedImage> frames = new ArrayList<>();
+        for (File file : files) {
+            try {
+                BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    continue;
+                }
+                BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                Graphics2D g = frame.createGraphics();
+                g.drawImage(image, 0, 0, width, height, null);
+                g.dispose();
+                frames.add(frame);
+            } catch (IOException ex) {
+                System.err.println("Could not read " + file + ": " + ex);
+            }
+        }
+        return frames.toArray(new BufferedImage[frames.size()]);
+    }
+}
+
+// EOF
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link VideoProcessor#readQRCode} on a frame binarized as in the QR
+ * pipeline.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QrBenchmark {
+
+    @Param({"1280x720", "640x360"})
+    public String resolution;
+
+    private VideoProcessor vp;
+    private Mat binarized;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        Mat frame = Util.Image2Mat(Frames.load(resolution)[0]);
+        vp = new VideoProcessor(null, frame.cols(), frame.rows());
+        Mat gray = new Mat();
+        Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.equalizeHist(gray, gray);
+        Imgproc.GaussianBlur(gray, gray, Workspace.QR_BLUR_SIZE, 0);
+        binarized = new Mat();
+        Imgproc.threshold(gray, binarized, 90, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
+        gray.release();
+        frame.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        binarized.release();
+    }
+
+    @Benchmark
+    public Point readQRCode() {
+        return vp.readQRCode(binarized);
+    }
+}
+
+// EOF
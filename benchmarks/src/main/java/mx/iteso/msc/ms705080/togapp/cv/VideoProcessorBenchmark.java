@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole frame processing ({@link VideoProcessor#ProcessFrame}) for every
+ * {@link VideoProcessor.ProcessType}, with every preview subscribed as in the
+ * UI, or in tracking only mode.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class VideoProcessorBenchmark {
+
+    @Param({"COLOR_RGB", "COLOR_HSV", "PRECONFIG_HSV", "MULTI_COLOR_HSV", "FACE_DETECTION", "QR_DETECTION"})
+    public String type;
+
+    @Param({"1280x720", "640x360"})
+    public String resolution;
+
+    @Param({"false", "true"})
+    public boolean trackingOnly;
+
+    private VideoProcessor vp;
+    private BufferedImage[] frames;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        frames = Frames.load(resolution);
+        vp = new VideoProcessor(null, frames[0].getWidth(), frames[0].getHeight());
+        vp.setType(VideoProcessor.ProcessType.valueOf(type));
+        if (vp.getType() == VideoProcessor.ProcessType.FACE_DETECTION && !vp.isFaceDetectionAvailable()) {
+            // Would time the exception path instead of the detection
+            throw new IllegalStateException("The face classifier did not load");
+        }
+        vp.setTrackingOnly(trackingOnly);
+        for (VideoProcessor.PreviewOutput output : VideoProcessor.PreviewOutput.values()) {
+            vp.subscribe(output);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vp.shutdown();
+    }
+
+    @Benchmark
+    public List<BufferedImage> processFrame() {
+        BufferedImage frame = frames[next];
+        next = (next + 1) % frames.length;
+        return vp.ProcessFrame(frame);
+    }
+}
+
+// EOF
@@ -38,29 +38,41 @@ public class Config {
      */
     public static final int MAX_ALTITUDE = 2_000;
     /**
-     * PID Constant - KP for X
+     * PID Constant - KP for X (speed percentage per normalized error)
      */
-    public static final int KP_X = 5;
+    public static final double KP_X = 150.0d;
     /**
-     * PID Constant - KI for X
+     * PID Constant - KI for X (per second)
      */
-    public static final int KI_X = 10;
+    public static final double KI_X = 40.0d;
     /**
-     * PID Constant - KD for X
+     * PID Constant - KD for X (in seconds)
      */
-    public static final int KD_X = 12;
+    public static final double KD_X = 4.0d;
     /**
-     * PID Constant - KP for Y
+     * PID Constant - KP for Y (speed percentage per normalized error)
      */
-    public static final int KP_Y = 5;
+    public static final double KP_Y = 300.0d;
     /**
-     * PID Constant - KI for Y
+     * PID Constant - KI for Y (per second)
      */
-    public static final int KI_Y = 10;
+    public static final double KI_Y = 40.0d;
     /**
-     * PID Constant - KD for Y
+     * PID Constant - KD for Y (in seconds)
      */
-    public static final int KD_Y = 12;
+    public static final double KD_Y = 4.0d;
+    /**
+     * Max spin speed commanded while tracking (percentage)
+     */
+    public static final double MAX_SPIN_SPEED = 50.0d;
+    /**
+     * Max vertical speed commanded while tracking (percentage)
+     */
+    public static final double MAX_VERTICAL_SPEED = 30.0d;
+    /**
+     * Time without a detection before the drone hovers (milliseconds)
+     */
+    public static final long STALE_DETECTION = 300;
 }
 
 // EOF
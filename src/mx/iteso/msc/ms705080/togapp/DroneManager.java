@@ -15,10 +15,6 @@
  */
 package mx.iteso.msc.ms705080.togapp;
 
-import de.yadrone.base.ARDrone;
-import de.yadrone.base.command.CommandManager;
-import de.yadrone.base.command.VideoChannel;
-import de.yadrone.base.command.VideoCodec;
 import de.yadrone.base.navdata.Altitude;
 import de.yadrone.base.navdata.AltitudeListener;
 import de.yadrone.base.navdata.BatteryListener;
@@ -26,11 +22,24 @@ import java.awt.image.BufferedImage;
 import de.yadrone.base.video.ImageListener;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import mx.iteso.msc.ms705080.togapp.control.CommandDispatcher;
+import mx.iteso.msc.ms705080.togapp.control.PidController;
+import mx.iteso.msc.ms705080.togapp.control.TargetEstimator;
 import mx.iteso.msc.ms705080.togapp.cv.ProcessedImagesListener;
 import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor;
+import mx.iteso.msc.ms705080.togapp.drone.ARDroneController;
+import mx.iteso.msc.ms705080.togapp.drone.DroneController;
+import mx.iteso.msc.ms705080.togapp.metrics.FlightRecorderEvents;
+import mx.iteso.msc.ms705080.togapp.metrics.LatencyHistogram;
+import mx.iteso.msc.ms705080.togapp.source.FrameSource;
+import org.opencv.core.Point;
 
 /**
  *
@@ -38,8 +47,21 @@ import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor;
  */
 public class DroneManager implements ImageListener, AltitudeListener, BatteryListener {
 
-    // Drone object
-    private ARDrone drone = null;
+    // Time between checks for stale detections, in milliseconds
+    private static final long WATCHDOG_PERIOD = 100;
+    // Time between movement commands, in milliseconds (the AR.Drone command rate)
+    private static final long COMMAND_PERIOD = 30;
+    // Longest time step fed to the controllers, in seconds
+    private static final double MAX_DT = 0.5d;
+    // Capture times kept for the frames in flight
+    private static final int CAPTURE_HISTORY = 64;
+
+    // Drone object (null when replaying a recording)
+    private final DroneController drone;
+    // Sends the movement commands (null when replaying a recording)
+    private final CommandDispatcher dispatcher;
+    // Where the frames come from
+    private final FrameSource frameSource;
     // Listeners to notify
     private final List<ProcessedImagesListener> videoListeners = new ArrayList<>();
     private final List<AltitudeListener> altitudeListeners = new ArrayList<>();
@@ -47,23 +69,39 @@ public class DroneManager implements ImageListener, AltitudeListener, BatteryLis
     // Flags
     private boolean droneActive = false;
     private boolean droneTracking = false;
-    // Current frame
-    private BufferedImage currentFrame;
-    // Current altitude
-    private int currentAltitude;
-    // A timer for processing the video stream
-    private final ScheduledExecutorService videoTimer;
+    // Latest frame received from the drone
+    private final FrameMailbox frames = new FrameMailbox();
+    // Capture time of the recent frames, by sequence
+    private final AtomicLongArray captureTimes = new AtomicLongArray(CAPTURE_HISTORY);
+    // Capture to processing start and capture to command latency
+    private final LatencyHistogram frameAge = new LatencyHistogram();
+    private final LatencyHistogram commandLatency = new LatencyHistogram();
+    // Control steps and how much the time between them varies
+    private final LongAdder trackerRuns = new LongAdder();
+    private final LatencyHistogram trackerJitter = new LatencyHistogram();
+    private long lastTrackerRun;
+    private long lastTrackerInterval;
+    // Current altitude and battery level
+    private volatile int currentAltitude;
+    private volatile int batteryLevel;
+    // A thread for processing the video stream
+    private final ExecutorService videoThread;
     // A timer for processing the drone movement
     private final ScheduledExecutorService droneTimer;
     // Video processing
-    private VideoProcessor videoProcessor;
-    // PID Controller
-    private int xCenter = 0;
-    private double xOffset;
-    private double xError, xLastError, xIntegral, xDerivative;
-    private int yCenter = 0;
-    private double yOffset;
-    private double yError, yLastError, yIntegral, yDerivative;
+    private volatile VideoProcessor videoProcessor;
+    // Target position from the detections, predicted to the time of each command
+    private final TargetEstimator estimator = new TargetEstimator(Config.STALE_DETECTION);
+    // Latest detection, and whether a control step is already queued for it
+    private volatile Detection latestDetection;
+    private final AtomicBoolean controlPending = new AtomicBoolean();
+    // PID Controller (drone thread only)
+    private final PidController xPid = new PidController(Config.KP_X, Config.KI_X, Config.KD_X, Config.MAX_SPIN_SPEED);
+    private final PidController yPid = new PidController(Config.KP_Y, Config.KI_Y, Config.KD_Y, Config.MAX_VERTICAL_SPEED);
+    private long lastControlSequence;
+    // Time of the last control step, 0 while holding
+    private long lastStepNanos;
+    private boolean holding = true;
 
     @Override
     public void receivedAltitude(int altitude) {
@@ -80,6 +118,7 @@ public class DroneManager implements ImageListener, AltitudeListener, BatteryLis
 
     @Override
     public void batteryLevelChanged(int level) {
+        batteryLevel = level;
         batteryListeners.forEach((listener) -> {
             listener.batteryLevelChanged(level);
         });
@@ -94,78 +133,186 @@ public class DroneManager implements ImageListener, AltitudeListener, BatteryLis
 
         @Override
         public void run() {
-            if (currentFrame != null) {
-                List<BufferedImage> results;
-                results = videoProcessor.ProcessFrame(currentFrame);
-                videoListeners.forEach((listener) -> {
-                    listener.imageUpdated(results);
-                });
+            long lastSequence = 0;
+            try {
+                FrameMailbox.Frame frame;
+                // Wait for each new frame, skipping the ones already processed
+                while ((frame = frames.take(lastSequence)) != null) {
+                    lastSequence = frame.getSequence();
+                    if (videoProcessor == null) {
+                        continue;
+                    }
+                    frameAge.record(System.nanoTime() - frame.getCaptureNanos());
+                    captureTimes.set((int) (lastSequence % CAPTURE_HISTORY), frame.getCaptureNanos());
+                    // Results come back through imagesProcessed and detectionUpdated
+                    videoProcessor.submitFrame(frame.getImage(), frame.getSequence());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    private class objectTracker implements Runnable {
+    /**
+     * A detection, with the capture time and size of its frame.
+     */
+    private static class Detection {
 
-        @Override
-        public void run() {
-            if (droneActive && droneTracking && videoProcessor.ObjectDetected()) {
-                System.out.println("Trying to do something...");
-
-                // PID
-                // Normalize current position
-                double xCurPos = 2.0d * videoProcessor.getTrackedObject().x / (double) videoProcessor.getWidth() - 1.0d;
-                double yCurPos = 2.0d * videoProcessor.getTrackedObject().y / (double) videoProcessor.getHeight() - 1.0d;
-                xOffset = 0.0d - xCurPos;
-                yOffset = 0.0d - yCurPos;
-                xError = xCurPos - xOffset;
-                yError = yCurPos - yOffset;
-                xIntegral += xError;
-                yIntegral += yError;
-                xDerivative -= xLastError;
-                yDerivative -= yLastError;
-                double xMove = Config.KP_X * xError + Config.KI_X * xIntegral + Config.KD_X * xDerivative;
-                double yMove = Config.KP_Y * yError + Config.KI_Y * yIntegral + Config.KD_Y * yDerivative;
-                xLastError = xError;
-                yLastError = yError;
-                CommandManager cmd = drone.getCommandManager();
-                if (xMove > 0) {
-                    cmd.spinRight((int) Math.abs(xMove * 0.1d)).doFor(10);
-                } else {
-                    cmd.spinLeft((int) Math.abs(xMove * 0.1d)).doFor(10);
-                }
-                if (yMove < 0) {
-                    cmd.up((int) Math.abs(yMove * 0.1d)).doFor(10);
-                } else {
-                    cmd.down((int) Math.abs(yMove * 0.1d)).doFor(10);
-                }
-            }
-            else {
-                drone.hover();
+        final long sequence;
+        final long captureNanos;
+        final boolean detected;
+        final int frameWidth;
+        final int frameHeight;
+
+        Detection(long sequence, long captureNanos, boolean detected, int frameWidth, int frameHeight) {
+            this.sequence = sequence;
+            this.captureNanos = captureNanos;
+            this.detected = detected;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+        }
+    }
+
+    /**
+     * Called by the video processor for every processed frame. Every
+     * detection goes into the estimator; the control step runs on the drone
+     * thread and, if it is still busy with a previous frame, only for the
+     * latest one.
+     */
+    private void detectionUpdated(long sequence, boolean detected, Point position, int frameWidth, int frameHeight) {
+        long captureNanos = captureTimes.get((int) (sequence % CAPTURE_HISTORY));
+        if (captureNanos == 0) {
+            captureNanos = System.nanoTime();
+        }
+        if (detected) {
+            estimator.update(position.x, position.y, captureNanos);
+        }
+        latestDetection = new Detection(sequence, captureNanos, detected, frameWidth, frameHeight);
+        if (controlPending.compareAndSet(false, true)) {
+            droneTimer.execute(this::controlStep);
+        }
+    }
+
+    /**
+     * Runs the PID controllers after a fresh detection, on the position the
+     * estimator predicts for now, with the time since the previous step as
+     * time step. Frames where the target was missed keep the drone moving on
+     * the prediction until the detection is {@link Config#STALE_DETECTION}
+     * milliseconds old.
+     */
+    private void controlStep() {
+        controlPending.set(false);
+        Detection detection = latestDetection;
+        if (drone == null || detection == null || detection.sequence == lastControlSequence) {
+            // Replaying a recording (nothing to fly), or nothing new
+            return;
+        }
+        lastControlSequence = detection.sequence;
+        long now = System.nanoTime();
+        if (lastTrackerRun != 0) {
+            long interval = now - lastTrackerRun;
+            if (lastTrackerInterval != 0) {
+                trackerJitter.record(Math.abs(interval - lastTrackerInterval));
             }
+            lastTrackerInterval = interval;
+        }
+        lastTrackerRun = now;
+        trackerRuns.increment();
+        // Where the target should be as the command goes out
+        Point target = estimator.predict(now);
+        if (!droneActive || !droneTracking || target == null) {
+            // The watchdog hovers once the last detection is too old
+            return;
+        }
+
+        // Time since the previous step, none after holding
+        double dt = lastStepNanos != 0 ? Math.min(MAX_DT, (now - lastStepNanos) / 1e9) : 0.0d;
+        lastStepNanos = now;
+        holding = false;
+        // Distance from the target to the center of the frame, normalized to
+        // [-1, 1]; predictions may run past the edges of the frame
+        double xError = clamp(2.0d * target.x / (double) detection.frameWidth - 1.0d);
+        double yError = clamp(2.0d * target.y / (double) detection.frameHeight - 1.0d);
+        double xMove = xPid.update(xError, dt);
+        double yMove = yPid.update(yError, dt);
+        FlightRecorderEvents.pid(detection.sequence, xError, xPid.getIntegral(), xPid.getDerivative(), xMove,
+                yError, yPid.getIntegral(), yPid.getDerivative(), yMove);
+        // Target to the right: spin right; target below the center: go down
+        int yaw = (int) Math.round(xMove);
+        int vertical = (int) Math.round(-yMove);
+        dispatcher.submit(new CommandDispatcher.Setpoint(detection.sequence,
+                detection.detected ? detection.captureNanos : 0, 0, 0, vertical, yaw));
+    }
+
+    private static double clamp(double error) {
+        return Math.max(-1.0d, Math.min(1.0d, error));
+    }
+
+    /**
+     * Hovers when tracking is turned off or the target has not been seen for
+     * {@link Config#STALE_DETECTION} milliseconds, and starts the controllers
+     * over.
+     */
+    private void watchdog() {
+        if (drone == null || holding) {
+            return;
+        }
+        boolean stale = estimator.predict(System.nanoTime()) == null;
+        if (!droneActive || !droneTracking || stale) {
+            holding = true;
+            lastStepNanos = 0;
+            xPid.reset();
+            yPid.reset();
+            dispatcher.hover();
         }
     }
 
+    /**
+     * Flies the drone, processing its camera.
+     */
     public DroneManager() {
-        // Initialize drone
-        drone = new ARDrone();
-        drone.setHorizontalCamera();
-        drone.setMaxAltitude(Config.MAX_ALTITUDE);
-        drone.setSpeed(Config.DRONE_SPEED);
-        drone.getCommandManager().setOutdoor(false, false);
-        drone.getCommandManager().setVideoChannel(VideoChannel.HORI);
-        drone.getCommandManager().setVideoCodec(VideoCodec.H264_720P);
+        this(new ARDroneController());
+    }
+
+    /**
+     * Flies the given drone, processing its camera.
+     *
+     * @param drone the drone, real or simulated
+     */
+    public DroneManager(DroneController drone) {
+        this(drone, drone.getCamera());
+    }
+
+    /**
+     * Processes recorded frames, without a drone.
+     *
+     * @param frameSource the recording
+     */
+    public DroneManager(FrameSource frameSource) {
+        this(null, frameSource);
+    }
+
+    private DroneManager(DroneController drone, FrameSource frameSource) {
+        this.drone = drone;
+        this.frameSource = frameSource;
         // Listeners
-        drone.getVideoManager().addImageListener(this);
-        drone.getNavDataManager().addBatteryListener(this);
-        drone.getNavDataManager().addAltitudeListener(this);
-        drone.start();
-
-        // Grab a frame every 33 ms (30 frames/sec)
-        videoTimer = Executors.newSingleThreadScheduledExecutor();
-        videoTimer.scheduleAtFixedRate(new videoUpdater(), 0, 33, TimeUnit.MILLISECONDS);
-        // Verify tracked object position every 0.5 seconds and react accordangly
+        frameSource.start(this);
+        if (drone != null) {
+            drone.addBatteryListener(this);
+            drone.addAltitudeListener(this);
+            drone.start();
+            dispatcher = new CommandDispatcher(drone, COMMAND_PERIOD, commandLatency);
+            dispatcher.start();
+        } else {
+            dispatcher = null;
+        }
+
+        // Process frames as soon as they arrive
+        videoThread = Executors.newSingleThreadExecutor();
+        videoThread.execute(new videoUpdater());
+        // React to every detection, and hover when they stop coming
         droneTimer = Executors.newSingleThreadScheduledExecutor();
-        droneTimer.scheduleAtFixedRate(new objectTracker(), 0, 750, TimeUnit.MILLISECONDS);
+        droneTimer.scheduleAtFixedRate(this::watchdog, 0, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     public void addListener(ProcessedImagesListener listener) {
@@ -181,38 +328,156 @@ public class DroneManager implements ImageListener, AltitudeListener, BatteryLis
     }
 
     public void stopDrone() {
+        frameSource.stop();
         if (drone != null) {
+            dispatcher.stop();
             drone.stop();
         }
+        frames.close();
+        videoThread.shutdown();
+        if (videoProcessor != null) {
+            videoProcessor.shutdown();
+        }
     }
 
     public void takeOffDrone() {
         if (drone != null) {
+            dispatcher.cancel();
             drone.takeOff();
+            FlightRecorderEvents.command(0, "TAKE_OFF");
         }
     }
 
     public void landDrone() {
         if (drone != null) {
+            dispatcher.cancel();
             drone.landing();
+            FlightRecorderEvents.command(0, "LANDING");
         }
     }
 
     public void hoverDrone() {
         if (drone != null) {
-            drone.hover();
+            dispatcher.hover();
         }
     }
 
     public void resetDrone() {
         if (drone != null) {
+            dispatcher.cancel();
             drone.reset();
+            FlightRecorderEvents.command(0, "RESET");
         }
     }
 
     @Override
     public void imageUpdated(BufferedImage newImage) {
-        currentFrame = newImage;
+        long sequence = frames.publish(newImage);
+        if (sequence > 0) {
+            FlightRecorderEvents.frameArrived(sequence, newImage.getWidth(), newImage.getHeight());
+        }
+        if (sequence > 0 && frameSource.isLossless()) {
+            // Let the processing thread pace the source instead of dropping frames
+            try {
+                frames.awaitTaken(sequence);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames received from the drone
+     */
+    public long getFramesReceived() {
+        return frames.getPublished();
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one before being
+     * processed
+     */
+    public long getFramesDropped() {
+        return frames.getDropped();
+    }
+
+    /**
+     * @return the number of frames received more than once
+     */
+    public long getFramesDuplicated() {
+        return frames.getDuplicates();
+    }
+
+    /**
+     * @return the time from the arrival of a frame to the start of its
+     * processing
+     */
+    public LatencyHistogram getFrameAge() {
+        return frameAge;
+    }
+
+    /**
+     * @return the time from the arrival of the last processed frame to each
+     * movement command
+     */
+    public LatencyHistogram getCommandLatency() {
+        return commandLatency;
+    }
+
+    /**
+     * @return the number of control steps, one per fresh detection
+     */
+    public long getTrackerRuns() {
+        return trackerRuns.sum();
+    }
+
+    /**
+     * @return how much the time between consecutive control steps varies
+     */
+    public LatencyHistogram getTrackerJitter() {
+        return trackerJitter;
+    }
+
+    /**
+     * @return the number of movement and hover commands sent to the drone
+     */
+    public long getCommandsSent() {
+        return dispatcher != null ? dispatcher.getSent() : 0;
+    }
+
+    /**
+     * @return the number of movement setpoints replaced by a newer one
+     * before being sent to the drone
+     */
+    public long getCommandsSuperseded() {
+        return dispatcher != null ? dispatcher.getSuperseded() : 0;
+    }
+
+    /**
+     * @return the target position estimator, with its prediction error
+     */
+    public TargetEstimator getTargetEstimator() {
+        return estimator;
+    }
+
+    /**
+     * @return the last altitude received, in millimeters
+     */
+    public int getCurrentAltitude() {
+        return currentAltitude;
+    }
+
+    /**
+     * @return the last battery level received, in percent
+     */
+    public int getBatteryLevel() {
+        return batteryLevel;
+    }
+
+    private void imagesProcessed(List<BufferedImage> results) {
+        videoListeners.forEach((listener) -> {
+            listener.imageUpdated(results);
+        });
     }
 
     /**
@@ -227,9 +492,8 @@ public class DroneManager implements ImageListener, AltitudeListener, BatteryLis
      */
     public void setVideoProcessor(VideoProcessor videoProcessor) {
         this.videoProcessor = videoProcessor;
-        // Initialize PID Controller
-        xCenter = videoProcessor.getWidth() / 2;
-        yCenter = videoProcessor.getHeight() / 2;
+        videoProcessor.addListener(this::imagesProcessed);
+        videoProcessor.addListener(this::detectionUpdated);
     }
 
     /**
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Single slot, latest-wins handoff between the video decoder and the
+ * processing thread. Publishing a frame replaces any frame that was not taken
+ * yet (counted as dropped) and wakes up the consumer right away.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class FrameMailbox {
+
+    /**
+     * A published frame and its sequence number.
+     */
+    public static class Frame {
+
+        private final BufferedImage image;
+        private final long sequence;
+        // System.nanoTime() when the frame was published
+        private final long captureNanos;
+
+        Frame(BufferedImage image, long sequence) {
+            this.image = image;
+            this.sequence = sequence;
+            this.captureNanos = System.nanoTime();
+        }
+
+        /**
+         * @return the image
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return the sequence
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the System.nanoTime() when the frame was published
+         */
+        public long getCaptureNanos() {
+            return captureNanos;
+        }
+    }
+
+    // Latest frame (may have been taken already)
+    private Frame latest;
+    // Sequence of the latest frame handed to the consumer
+    private long taken;
+    // Counters
+    private long published;
+    private long dropped;
+    private long duplicates;
+    // No more frames will be taken
+    private boolean closed;
+
+    /**
+     * Publishes a new frame. The same image instance delivered twice in a row
+     * is counted as a duplicate and does not get a new sequence number.
+     *
+     * @param image the new frame
+     * @return the sequence assigned to the frame, or -1 if it was a duplicate
+     */
+    public synchronized long publish(BufferedImage image) {
+        if (latest != null && latest.image == image) {
+            duplicates++;
+            return -1;
+        }
+        if (latest != null && latest.sequence > taken) {
+            // Previous frame was never processed
+            dropped++;
+        }
+        published++;
+        latest = new Frame(image, published);
+        notifyAll();
+        return published;
+    }
+
+    /**
+     * Waits for a frame newer than the given sequence.
+     *
+     * @param lastSequence sequence of the last processed frame
+     * @return the newest frame, or null if the mailbox was closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Frame take(long lastSequence) throws InterruptedException {
+        while (!closed && (latest == null || latest.sequence <= lastSequence)) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        taken = latest.sequence;
+        notifyAll();
+        return latest;
+    }
+
+    /**
+     * Waits until the consumer took a frame, so a producer that must not lose
+     * frames can be paced by the consumer.
+     *
+     * @param sequence sequence returned by {@link #publish(BufferedImage)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitTaken(long sequence) throws InterruptedException {
+        while (!closed && taken < sequence) {
+            wait();
+        }
+    }
+
+    /**
+     * Releases the consumer, no more frames will be handed out.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of frames published
+     */
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the number of frames replaced before being processed
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of frames delivered more than once
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+}
+
+// EOF
@@ -15,9 +15,19 @@
  */
 package mx.iteso.msc.ms705080.togapp;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
+import mx.iteso.msc.ms705080.togapp.drone.SimulatedDrone;
+import mx.iteso.msc.ms705080.togapp.metrics.JmxMetrics;
+import mx.iteso.msc.ms705080.togapp.source.FrameSource;
+import mx.iteso.msc.ms705080.togapp.source.ImageDirectorySource;
+import mx.iteso.msc.ms705080.togapp.source.ReplaySpeed;
+import mx.iteso.msc.ms705080.togapp.source.VideoFileSource;
 import mx.iteso.msc.ms705080.togapp.ui.MainForm;
 import org.opencv.core.Core;
 
@@ -27,12 +37,22 @@ import org.opencv.core.Core;
  */
 public class TOGApp {
 
+    // Frame rate of image directories when none is given
+    private static final double DEFAULT_REPLAY_FPS = 30.0d;
+    // Emit coordinates only, no annotated frame nor previews
+    private static boolean trackingOnly;
+
     static {
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
     }
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments: none to fly the drone, or
+     * {@code --replay <video file or image directory> [--speed REAL_TIME|FIXED_RATE|AS_FAST_AS_POSSIBLE] [--fps <rate>]}
+     * to process a recording instead, or
+     * {@code --simulate COLOR|QR_CODE|<image file>} to fly a simulated drone;
+     * {@code --tracking-only true} skips every image, the window only shows
+     * the charts
      */
     public static void main(String[] args) {
         /* Create and display the form */
@@ -48,11 +68,25 @@ public class TOGApp {
                 }
 
                 // Initialize UAV Manager
-                dm = new DroneManager();
+                dm = createManager(args);
+                JmxMetrics.register(dm);
+                // Where the time went, printed on exit
+                DroneManager manager = dm;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    System.out.println("Frame age: " + manager.getFrameAge());
+                    System.out.println("Capture to command: " + manager.getCommandLatency());
+                    System.out.printf("Prediction error: %.1f px RMS, %.1f px max%n",
+                            manager.getTargetEstimator().getPredictionErrorRms(),
+                            manager.getTargetEstimator().getPredictionErrorMax());
+                    if (manager.getVideoProcessor() != null) {
+                        System.out.print(manager.getVideoProcessor().getStageTimings());
+                    }
+                }));
 
                 // Show main window
                 // Center
                 JFrame mainForm = new MainForm(dm);
+                dm.getVideoProcessor().setTrackingOnly(trackingOnly);
                 mainForm.setLocationRelativeTo(null);
                 mainForm.setVisible(true);
 
@@ -67,6 +101,75 @@ public class TOGApp {
         });
     }
 
+    /**
+     * @return a manager for the drone, the simulator or the recording given
+     * in the command line
+     */
+    private static DroneManager createManager(String[] args) throws IOException {
+        String path = null;
+        String simulate = null;
+        ReplaySpeed speed = ReplaySpeed.REAL_TIME;
+        double fps = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for option " + args[i]);
+            }
+            switch (args[i]) {
+                case "--replay":
+                    path = args[i + 1];
+                    break;
+                case "--speed":
+                    speed = ReplaySpeed.valueOf(args[i + 1]);
+                    break;
+                case "--fps":
+                    fps = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--simulate":
+                    simulate = args[i + 1];
+                    break;
+                case "--tracking-only":
+                    trackingOnly = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (simulate != null) {
+            SimulatedDrone drone = simulatedDrone(simulate);
+            // Closed loop results
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.printf("Tracking error: %.1f deg RMS, %.1f deg RMS over the last 10 s, %.1f deg max%n",
+                        drone.getTrackingErrorRms(), drone.getRecentTrackingErrorRms(), drone.getTrackingErrorMax());
+            }));
+            return new DroneManager(drone);
+        }
+        if (path == null) {
+            return new DroneManager();
+        }
+        File file = new File(path);
+        FrameSource replay;
+        if (file.isDirectory()) {
+            replay = new ImageDirectorySource(file, speed, fps > 0 ? fps : DEFAULT_REPLAY_FPS);
+        } else {
+            replay = new VideoFileSource(file, speed, fps);
+        }
+        return new DroneManager(replay);
+    }
+
+    private static SimulatedDrone simulatedDrone(String target) throws IOException {
+        switch (target) {
+            case "COLOR":
+                return new SimulatedDrone(SimulatedDrone.Target.COLOR, null);
+            case "QR_CODE":
+                return new SimulatedDrone(SimulatedDrone.Target.QR_CODE, null);
+            default:
+                BufferedImage image = ImageIO.read(new File(target));
+                if (image == null) {
+                    throw new IOException("Not an image: " + target);
+                }
+                return new SimulatedDrone(SimulatedDrone.Target.IMAGE, image);
+        }
+    }
 }
 
 // EOF
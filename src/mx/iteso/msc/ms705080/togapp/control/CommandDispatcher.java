@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.control;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import mx.iteso.msc.ms705080.togapp.drone.DroneController;
+import mx.iteso.msc.ms705080.togapp.metrics.FlightRecorderEvents;
+import mx.iteso.msc.ms705080.togapp.metrics.LatencyHistogram;
+
+/**
+ * Sends movement commands to the drone from its own thread. The controller
+ * only posts the latest desired setpoint, which never blocks; on every tick
+ * the dispatcher sends the newest one as a single combined move on every
+ * axis, and setpoints replaced before their tick are dropped.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class CommandDispatcher {
+
+    /**
+     * Desired speeds on every axis, as percentages (see
+     * {@link DroneController#move}), and the frame they react to.
+     */
+    public static class Setpoint {
+
+        // Stop moving
+        static final Setpoint HOVER = new Setpoint(0, 0, 0, 0, 0, 0);
+
+        final long sequence;
+        final long captureNanos;
+        final int roll, pitch, vertical, yaw;
+
+        /**
+         * @param sequence the frame the setpoint reacts to, 0 if none
+         * @param captureNanos System.nanoTime() when that frame was captured,
+         * 0 if none
+         */
+        public Setpoint(long sequence, long captureNanos, int roll, int pitch, int vertical, int yaw) {
+            this.sequence = sequence;
+            this.captureNanos = captureNanos;
+            this.roll = roll;
+            this.pitch = pitch;
+            this.vertical = vertical;
+            this.yaw = yaw;
+        }
+    }
+
+    private final DroneController drone;
+    private final long tickMillis;
+    // Capture to command latency of the setpoints sent
+    private final LatencyHistogram latency;
+    // Newest setpoint not sent yet
+    private final AtomicReference<Setpoint> pending = new AtomicReference<>();
+    private ScheduledExecutorService ticker;
+    // Counters
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+
+    /**
+     * @param drone where the commands go
+     * @param tickMillis time between commands, in milliseconds
+     * @param latency where the capture to command latency of each setpoint
+     * that reacts to a frame is recorded
+     */
+    public CommandDispatcher(DroneController drone, long tickMillis, LatencyHistogram latency) {
+        this.drone = drone;
+        this.tickMillis = tickMillis;
+        this.latency = latency;
+    }
+
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "command-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, 0, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Posts a new setpoint, replacing any other not sent yet.
+     *
+     * @param setpoint the desired speeds
+     */
+    public void submit(Setpoint setpoint) {
+        if (pending.getAndSet(setpoint) != null) {
+            superseded.increment();
+        }
+    }
+
+    /**
+     * Stops the drone on the next tick, replacing any setpoint not sent yet.
+     */
+    public void hover() {
+        submit(Setpoint.HOVER);
+    }
+
+    /**
+     * Drops the setpoint not sent yet, if any, e.g. before landing.
+     */
+    public void cancel() {
+        pending.set(null);
+    }
+
+    private void tick() {
+        Setpoint setpoint = pending.getAndSet(null);
+        if (setpoint == null) {
+            // Nothing new, the drone keeps the last command
+            return;
+        }
+        try {
+            if (setpoint == Setpoint.HOVER) {
+                drone.hover();
+                FlightRecorderEvents.command(0, "HOVER");
+            } else {
+                drone.move(setpoint.roll, setpoint.pitch, setpoint.vertical, setpoint.yaw);
+                FlightRecorderEvents.move(setpoint.sequence, setpoint.roll, setpoint.pitch, setpoint.vertical,
+                        setpoint.yaw);
+                if (setpoint.captureNanos != 0) {
+                    latency.record(System.nanoTime() - setpoint.captureNanos);
+                }
+            }
+            sent.increment();
+        } catch (Exception e) {
+            System.err.println("Exception sending a drone command: " + e);
+        }
+    }
+
+    /**
+     * @return the number of commands sent
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of setpoints replaced before being sent
+     */
+    public long getSuperseded() {
+        return superseded.sum();
+    }
+}
+
+// EOF
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.control;
+
+/**
+ * PID controller for one axis, driven by samples taken at irregular
+ * intervals: the integral and the derivative use the actual time between
+ * samples. The output is clamped to a symmetric limit and the integral stops
+ * growing while the output is saturated in the direction of the error
+ * (conditional integration), so it does not wind up while the drone cannot
+ * go any faster.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class PidController {
+
+    private final double kp;
+    private final double ki;
+    private final double kd;
+    private final double outputLimit;
+
+    // State, valid once a sample was taken
+    private boolean started;
+    private double integral;
+    private double lastError;
+    // Terms of the last update, for tracing
+    private double error;
+    private double derivative;
+    private double output;
+
+    /**
+     * @param kp proportional gain
+     * @param ki integral gain, per second
+     * @param kd derivative gain, in seconds
+     * @param outputLimit largest absolute output
+     */
+    public PidController(double kp, double ki, double kd, double outputLimit) {
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+        this.outputLimit = outputLimit;
+    }
+
+    /**
+     * Takes a sample and computes the output.
+     *
+     * @param error the error to drive to zero
+     * @param dt seconds since the previous sample, ignored for the first one
+     * @return the output, within the limit
+     */
+    public double update(double error, double dt) {
+        this.error = error;
+        if (!started || dt <= 0) {
+            // Nothing to differentiate against yet
+            derivative = 0.0d;
+        } else {
+            derivative = (error - lastError) / dt;
+        }
+        double candidate = integral;
+        if (started && dt > 0) {
+            candidate += error * dt;
+        }
+        double unclamped = kp * error + ki * candidate + kd * derivative;
+        // Conditional integration: keep the integral only if it does not push further into saturation
+        if (Math.abs(unclamped) <= outputLimit || Math.signum(unclamped) != Math.signum(error)) {
+            integral = candidate;
+        }
+        output = clamp(kp * error + ki * integral + kd * derivative);
+        lastError = error;
+        started = true;
+        return output;
+    }
+
+    private double clamp(double value) {
+        return Math.max(-outputLimit, Math.min(outputLimit, value));
+    }
+
+    /**
+     * Forgets the integral and the last error, e.g. after the target was
+     * lost.
+     */
+    public void reset() {
+        started = false;
+        integral = 0.0d;
+        lastError = 0.0d;
+        error = 0.0d;
+        derivative = 0.0d;
+        output = 0.0d;
+    }
+
+    /**
+     * @return the error of the last sample
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * @return the integral of the error, in error times seconds
+     */
+    public double getIntegral() {
+        return integral;
+    }
+
+    /**
+     * @return the derivative of the error at the last sample, per second
+     */
+    public double getDerivative() {
+        return derivative;
+    }
+
+    /**
+     * @return the last output
+     */
+    public double getOutput() {
+        return output;
+    }
+}
+
+// EOF
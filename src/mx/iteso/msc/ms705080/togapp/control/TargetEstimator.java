@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.control;
+
+import org.opencv.core.Point;
+
+/**
+ * Constant velocity Kalman filter on the target position in the frame, one
+ * per axis. Detections are fed with the capture time of their frame and the
+ * position is predicted for any later time, so the controller can act on
+ * where the target is when the command goes out instead of where it was when
+ * the frame was taken. The filter also smooths the jitter of the detected
+ * centers and keeps predicting through missed detections; after a gap longer
+ * than the given limit it starts over from the next detection.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class TargetEstimator {
+
+    // Random acceleration of the target, in squared pixels per cubed second
+    private static final double PROCESS_NOISE = 1e6;
+    // Jitter of the detected centers, in squared pixels
+    private static final double MEASUREMENT_NOISE = 64.0d;
+    // Uncertainty of the velocity of a new target, in squared pixels per squared second
+    private static final double INITIAL_VELOCITY_VARIANCE = 1e6;
+
+    /**
+     * Position and velocity on one axis, with their covariance.
+     */
+    private static class Axis {
+
+        double p, v;
+        double ppp, ppv, pvv;
+
+        void init(double z) {
+            p = z;
+            v = 0.0d;
+            ppp = MEASUREMENT_NOISE;
+            ppv = 0.0d;
+            pvv = INITIAL_VELOCITY_VARIANCE;
+        }
+
+        void predict(double dt) {
+            p += v * dt;
+            double dt2 = dt * dt;
+            // P = F P F' + Q, white acceleration model
+            ppp += 2 * dt * ppv + dt2 * pvv + PROCESS_NOISE * dt2 * dt / 3;
+            ppv += dt * pvv + PROCESS_NOISE * dt2 / 2;
+            pvv += PROCESS_NOISE * dt;
+        }
+
+        /**
+         * @return the innovation (measured minus predicted)
+         */
+        double correct(double z) {
+            double innovation = z - p;
+            double s = ppp + MEASUREMENT_NOISE;
+            double kp = ppp / s;
+            double kv = ppv / s;
+            p += kp * innovation;
+            v += kv * innovation;
+            // P = (I - K H) P
+            pvv -= kv * ppv;
+            ppv -= kp * ppv;
+            ppp -= kp * ppp;
+            return innovation;
+        }
+    }
+
+    private final Axis x = new Axis();
+    private final Axis y = new Axis();
+    private final long maxGapNanos;
+    // Capture time of the last detection, 0 before the first one
+    private long lastNanos;
+    // Predicted against measured position, in pixels
+    private long errorSamples;
+    private double errorSquares;
+    private double maxError;
+
+    /**
+     * @param maxGapMillis longest time without detections before starting
+     * over
+     */
+    public TargetEstimator(long maxGapMillis) {
+        this.maxGapNanos = maxGapMillis * 1_000_000L;
+    }
+
+    /**
+     * Adds a detection. Detections older than the last one are ignored.
+     *
+     * @param px detected center
+     * @param py detected center
+     * @param nanos System.nanoTime() when the frame was captured
+     */
+    public synchronized void update(double px, double py, long nanos) {
+        if (lastNanos != 0 && nanos <= lastNanos) {
+            return;
+        }
+        if (lastNanos == 0 || nanos - lastNanos > maxGapNanos) {
+            x.init(px);
+            y.init(py);
+        } else {
+            double dt = (nanos - lastNanos) / 1e9;
+            x.predict(dt);
+            y.predict(dt);
+            double error = Math.hypot(x.correct(px), y.correct(py));
+            errorSamples++;
+            errorSquares += error * error;
+            maxError = Math.max(maxError, error);
+        }
+        lastNanos = nanos;
+    }
+
+    /**
+     * @param nanos System.nanoTime() to predict for, no further than the
+     * gap limit past the last detection
+     * @return the predicted center, or null if there is no recent detection
+     */
+    public synchronized Point predict(long nanos) {
+        if (lastNanos == 0 || nanos - lastNanos > maxGapNanos) {
+            return null;
+        }
+        double dt = Math.max(0, nanos - lastNanos) / 1e9;
+        return new Point(x.p + x.v * dt, y.p + y.v * dt);
+    }
+
+    /**
+     * @return System.nanoTime() of the capture of the last detection, 0 if
+     * none
+     */
+    public synchronized long getLastDetectionNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * Forgets the target, the next detection starts over.
+     */
+    public synchronized void reset() {
+        lastNanos = 0;
+    }
+
+    /**
+     * @return the root mean square distance between the predicted and the
+     * detected centers, in pixels
+     */
+    public synchronized double getPredictionErrorRms() {
+        return errorSamples > 0 ? Math.sqrt(errorSquares / errorSamples) : 0.0d;
+    }
+
+    /**
+     * @return the largest distance between the predicted and the detected
+     * centers, in pixels
+     */
+    public synchronized double getPredictionErrorMax() {
+        return maxError;
+    }
+
+    /**
+     * @return the estimated velocity, in pixels per second
+     */
+    public synchronized Point getVelocity() {
+        return new Point(x.v, y.v);
+    }
+}
+
+// EOF
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a slow detection on a background thread, one at a time, while the
+ * frames keep flowing. The caller submits a task when the detector is idle
+ * and polls for its result on the following frames. Meant to be used from a
+ * single thread (the detection stage).
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ * @param <T> result type, tasks must not return null
+ */
+class AsyncDetection<T> {
+
+    private final ExecutorService executor;
+    // Running or finished task whose result was not polled yet
+    private Future<T> pending;
+
+    /**
+     * @param name name of the background thread
+     */
+    AsyncDetection(String name) {
+        executor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return whether a task is still running
+     */
+    boolean isBusy() {
+        return pending != null && !pending.isDone();
+    }
+
+    /**
+     * Starts a task, unless the previous result was not polled yet.
+     *
+     * @param task the detection
+     * @return true if the task was started
+     */
+    boolean submit(Callable<T> task) {
+        if (pending != null) {
+            return false;
+        }
+        pending = executor.submit(task);
+        return true;
+    }
+
+    /**
+     * @return the result of the last task, only once and only if it
+     * finished; null otherwise
+     */
+    T poll() {
+        if (pending == null || !pending.isDone()) {
+            return null;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Exception during the frame elaboration: " + e);
+            return null;
+        } finally {
+            pending = null;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
+
+// EOF
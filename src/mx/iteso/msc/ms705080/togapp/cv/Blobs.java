@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Connected components of a binary mask, found in a single pass: area,
+ * bounding box and centroid of every blob. The same data feeds the drawing
+ * and the target selection. Blobs can also be gathered one by one from
+ * other sets, to select among the blobs of several masks.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class Blobs {
+
+    // Blobs smaller than this are noise
+    static final int MIN_AREA = 64;
+    // Blobs at least this fraction of the largest one compete on closeness
+    private static final double CANDIDATE_AREA_RATIO = 0.5d;
+
+    // Output buffers of connectedComponentsWithStats
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    // Their contents, read in bulk
+    private int[] statsData = new int[0];
+    private double[] centroidsData = new double[0];
+    // Number of labels, background (label 0) included
+    private int count;
+    // Offset added to every coordinate
+    private double offsetX, offsetY;
+
+    /**
+     * Labels a mask.
+     *
+     * @param mask binary mask
+     * @param labels label buffer, same size as the mask
+     * @param offset position of the mask within the frame
+     */
+    void analyze(Mat mask, Mat labels, Point offset) {
+        count = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8, CvType.CV_32S);
+        offsetX = offset.x;
+        offsetY = offset.y;
+        if (statsData.length < count * stats.cols()) {
+            statsData = new int[count * stats.cols()];
+            centroidsData = new double[count * centroids.cols()];
+        }
+        if (count > 0) {
+            stats.get(0, 0, statsData);
+            centroids.get(0, 0, centroidsData);
+        }
+    }
+
+    /**
+     * Empties the set, to be filled with {@link #add(Blobs, int)}.
+     */
+    void clear() {
+        count = 1;
+        offsetX = 0;
+        offsetY = 0;
+        ensureCapacity(count);
+    }
+
+    /**
+     * Appends a blob of another set, in frame coordinates.
+     *
+     * @param from the set holding the blob
+     * @param label its label there
+     */
+    void add(Blobs from, int label) {
+        ensureCapacity(count + 1);
+        int base = count * Imgproc.CC_STAT_MAX;
+        System.arraycopy(from.statsData, label * Imgproc.CC_STAT_MAX, statsData, base, Imgproc.CC_STAT_MAX);
+        statsData[base + Imgproc.CC_STAT_LEFT] += (int) from.offsetX;
+        statsData[base + Imgproc.CC_STAT_TOP] += (int) from.offsetY;
+        centroidsData[count * 2] = from.offsetX + from.centroidsData[label * 2];
+        centroidsData[count * 2 + 1] = from.offsetY + from.centroidsData[label * 2 + 1];
+        count++;
+    }
+
+    private void ensureCapacity(int labels) {
+        if (statsData.length < labels * Imgproc.CC_STAT_MAX) {
+            statsData = Arrays.copyOf(statsData, 2 * labels * Imgproc.CC_STAT_MAX);
+            centroidsData = Arrays.copyOf(centroidsData, 2 * labels * 2);
+        }
+    }
+
+    /**
+     * @return the number of labels, background included: blobs go from 1 to
+     * count - 1
+     */
+    int count() {
+        return count;
+    }
+
+    int area(int label) {
+        return statsData[label * Imgproc.CC_STAT_MAX + Imgproc.CC_STAT_AREA];
+    }
+
+    /**
+     * @return the bounding box of a blob, in frame coordinates
+     */
+    Rect box(int label) {
+        int base = label * Imgproc.CC_STAT_MAX;
+        return new Rect((int) offsetX + statsData[base + Imgproc.CC_STAT_LEFT],
+                (int) offsetY + statsData[base + Imgproc.CC_STAT_TOP],
+                statsData[base + Imgproc.CC_STAT_WIDTH],
+                statsData[base + Imgproc.CC_STAT_HEIGHT]);
+    }
+
+    /**
+     * @return the centroid of a blob, in frame coordinates
+     */
+    Point centroid(int label) {
+        return new Point(offsetX + centroidsData[label * 2], offsetY + centroidsData[label * 2 + 1]);
+    }
+
+    /**
+     * Picks the target: the blob closest to the previous position among the
+     * ones of comparable size to the largest, or simply the largest if there
+     * is no previous position. Ties go to the lowest label.
+     *
+     * @param previous previous position of the target, or null
+     * @return the label of the target, or 0 if no blob is large enough
+     */
+    int select(Point previous) {
+        int largest = 0;
+        int largestArea = MIN_AREA - 1;
+        for (int label = 1; label < count; label++) {
+            if (area(label) > largestArea) {
+                largest = label;
+                largestArea = area(label);
+            }
+        }
+        if (largest == 0 || previous == null) {
+            return largest;
+        }
+        int best = largest;
+        double bestDistance = Double.MAX_VALUE;
+        double minArea = Math.max(MIN_AREA, largestArea * CANDIDATE_AREA_RATIO);
+        for (int label = 1; label < count; label++) {
+            if (area(label) < minArea) {
+                continue;
+            }
+            double dx = offsetX + centroidsData[label * 2] - previous.x;
+            double dy = offsetY + centroidsData[label * 2 + 1] - previous.y;
+            double distance = dx * dx + dy * dy;
+            if (distance < bestDistance) {
+                best = label;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
+
+// EOF
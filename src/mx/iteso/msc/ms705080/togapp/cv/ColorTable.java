@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import mx.iteso.msc.ms705080.togapp.TrackedObject;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Lookup table from HSV values to the tracked colors they belong to. Each
+ * color owns one bit: entry v of channel c has bit k set if v is within the
+ * range of color k on that channel, so a single LUT pass followed by the AND
+ * of the three channels labels every pixel with all its colors at once.
+ * Immutable once built, so it can be shared by the frame workers.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class ColorTable {
+
+    // One bit per color in an 8 bit label
+    static final int MAX_COLORS = 8;
+
+    private final List<TrackedObject> objects;
+    // 256 entries, 3 channels
+    private final Mat lut;
+    // Label to mask lookup table of each color (255 where its bit is set)
+    private final Mat[] selectors;
+
+    ColorTable(List<TrackedObject> objects) {
+        if (objects.size() > MAX_COLORS) {
+            throw new IllegalArgumentException("At most " + MAX_COLORS + " colors can be tracked at once");
+        }
+        this.objects = Collections.unmodifiableList(new ArrayList<>(objects));
+        byte[] table = new byte[256 * 3];
+        selectors = new Mat[objects.size()];
+        for (int k = 0; k < objects.size(); k++) {
+            Scalar min = objects.get(k).getHsvMin();
+            Scalar max = objects.get(k).getHsvMax();
+            for (int v = 0; v < 256; v++) {
+                for (int c = 0; c < 3; c++) {
+                    if (v >= min.val[c] && v <= max.val[c]) {
+                        table[v * 3 + c] |= 1 << k;
+                    }
+                }
+            }
+            byte[] selector = new byte[256];
+            for (int label = 0; label < 256; label++) {
+                selector[label] = (byte) ((label & (1 << k)) != 0 ? 255 : 0);
+            }
+            selectors[k] = new Mat(1, 256, CvType.CV_8UC1);
+            selectors[k].put(0, 0, selector);
+        }
+        lut = new Mat(1, 256, CvType.CV_8UC3);
+        lut.put(0, 0, table);
+    }
+
+    /**
+     * @return the colors, in priority order
+     */
+    List<TrackedObject> getObjects() {
+        return objects;
+    }
+
+    Mat getLut() {
+        return lut;
+    }
+
+    /**
+     * @return the lookup table extracting the mask of a color from the labels
+     */
+    Mat selector(int k) {
+        return selectors[k];
+    }
+}
+
+// EOF
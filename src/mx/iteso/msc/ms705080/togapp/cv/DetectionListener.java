@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import org.opencv.core.Point;
+
+/**
+ * Notified once per processed frame with the detection result, on the thread
+ * that finished the detection.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public interface DetectionListener {
+
+    /**
+     * @param sequence sequence number of the frame
+     * @param detected whether the object was found
+     * @param position center of the object, null if not found
+     * @param frameWidth width of the processed frame, in pixels
+     * @param frameHeight height of the processed frame, in pixels
+     */
+    public void detectionUpdated(long sequence, boolean detected, Point position, int frameWidth, int frameHeight);
+}
+
+// EOF
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the stages of {@link VideoProcessor} on separate threads:
+ * preprocessing on the submitting thread, detection and rendering on their
+ * own threads. Stages are connected by single slot queues and frames travel
+ * in a fixed pool of {@link Workspace}s, so at most {@link #POOL_SIZE} frames
+ * are in flight and a slow stage pushes back on the submitter instead of
+ * building a backlog.
+ * <p>
+ * With ROI tracking, the color search window of a frame is chosen while the
+ * previous frame is still in detection, so it comes from the detection before
+ * that one; {@link SearchWindow} moves it ahead by the motion of the frame in
+ * between.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class FramePipeline {
+
+    // Capacity of the queues between stages
+    private static final int QUEUE_SIZE = 1;
+    // One frame per stage plus one per queue
+    static final int POOL_SIZE = 3 + 2 * QUEUE_SIZE;
+
+    private final VideoProcessor vp;
+    // Workspaces ready to receive a new frame
+    private final BlockingQueue<Workspace> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    // Handoff queues
+    private final BlockingQueue<Workspace> preprocessed = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Workspace> detected = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    // Stage threads
+    private final Thread detectThread;
+    private final Thread renderThread;
+    // Cleared on shutdown so a blocked submitter gives up
+    private volatile boolean running = true;
+
+    FramePipeline(VideoProcessor vp) {
+        this.vp = vp;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            free.add(new Workspace());
+        }
+        detectThread = new Thread(this::detectLoop, "frame-detect");
+        detectThread.setDaemon(true);
+        detectThread.start();
+        renderThread = new Thread(this::renderLoop, "frame-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    /**
+     * Runs the first stage on the calling thread and hands the frame to the
+     * detection thread. Blocks while the pipeline is full.
+     *
+     * @param image the frame
+     * @param type the algorithm to process it with
+     * @param sequence sequence number of the frame
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void submit(BufferedImage image, VideoProcessor.ProcessType type, long sequence) throws InterruptedException {
+        Workspace ws = null;
+        while (running && ws == null) {
+            ws = free.poll(100, TimeUnit.MILLISECONDS);
+        }
+        if (ws == null) {
+            return;
+        }
+        try {
+            ws.type = type;
+            ws.sequence = sequence;
+            vp.load(image, ws);
+            vp.preprocess(ws);
+        } catch (Exception e) {
+            System.err.println("Exception during the frame elaboration: " + e);
+            free.put(ws);
+            return;
+        }
+        while (running && !preprocessed.offer(ws, 100, TimeUnit.MILLISECONDS)) {
+            // Wait for the detection thread
+        }
+    }
+
+    private void detectLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Workspace ws = preprocessed.take();
+                try {
+                    vp.detect(ws);
+                } catch (Exception e) {
+                    System.err.println("Exception during the frame elaboration: " + e);
+                    free.put(ws);
+                    continue;
+                }
+                detected.put(ws);
+            }
+        } catch (InterruptedException ex) {
+            // Pipeline shut down
+        }
+    }
+
+    private void renderLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Workspace ws = detected.take();
+                try {
+                    List<BufferedImage> results = vp.render(ws);
+                    vp.imagesProcessed(results, ws.sequence);
+                } catch (Exception e) {
+                    System.err.println("Exception during the frame elaboration: " + e);
+                } finally {
+                    // Images are reused, so the workspace can only go back once listeners are done
+                    free.put(ws);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Pipeline shut down
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        detectThread.interrupt();
+        renderThread.interrupt();
+    }
+}
+
+// EOF
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import com.google.zxing.LuminanceSource;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * ZXing luminance source over the bytes of a gray scale Mat, so a frame can be
+ * decoded without going through a BufferedImage. Cropping is a view over the
+ * same bytes.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class MatLuminanceSource extends LuminanceSource {
+
+    private final byte[] pixels;
+    // Size of the whole image held by pixels
+    private final int dataWidth;
+    private final int dataHeight;
+    // Position of this source within it
+    private final int left;
+    private final int top;
+
+    /**
+     * Reads a gray scale Mat.
+     *
+     * @param gray the image, CV_8UC1
+     * @param buffer buffer to read the pixels into, reused if it is large
+     * enough
+     */
+    MatLuminanceSource(Mat gray, byte[] buffer) {
+        this(read(gray, buffer), gray.cols(), gray.rows(), 0, 0, gray.cols(), gray.rows());
+    }
+
+    private MatLuminanceSource(byte[] pixels, int dataWidth, int dataHeight, int left, int top, int width, int height) {
+        super(width, height);
+        this.pixels = pixels;
+        this.dataWidth = dataWidth;
+        this.dataHeight = dataHeight;
+        this.left = left;
+        this.top = top;
+    }
+
+    private static byte[] read(Mat gray, byte[] buffer) {
+        if (gray.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("Expected a gray scale image");
+        }
+        int size = (int) gray.total();
+        byte[] pixels = buffer != null && buffer.length >= size ? buffer : new byte[size];
+        gray.get(0, 0, pixels);
+        return pixels;
+    }
+
+    /**
+     * @return the buffer holding the pixels, to be reused for the next frame
+     */
+    byte[] getBuffer() {
+        return pixels;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        System.arraycopy(pixels, (y + top) * dataWidth + left, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        if (width == dataWidth && height == dataHeight && pixels.length == width * height) {
+            return pixels;
+        }
+        byte[] matrix = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, (y + top) * dataWidth + left, matrix, y * width, width);
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new MatLuminanceSource(pixels, dataWidth, dataHeight, this.left + left, this.top + top, width, height);
+    }
+}
+
+// EOF
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import mx.iteso.msc.ms705080.togapp.TrackedObjectColor;
+import org.opencv.core.Point;
+
+/**
+ * Processes consecutive frames concurrently on a pool of worker
+ * {@link VideoProcessor}s, each with its own classifier and buffers, and
+ * delivers the results in frame order through a {@link ReorderBuffer}. A
+ * worker only takes a new frame once its previous result was delivered or
+ * dropped, since its output images are reused.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class ParallelFrameProcessor {
+
+    // Max time a result waits for an earlier, slower frame
+    private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Output of a worker for one frame.
+     */
+    private static class Result {
+
+        final VideoProcessor worker;
+        final long frameSequence;
+        final List<BufferedImage> images;
+        final boolean detected;
+        final Point position;
+        final Map<TrackedObjectColor, Point> positions;
+        final Map<VideoProcessor.ProcessType, Point> detections;
+        final int frameWidth;
+        final int frameHeight;
+
+        Result(VideoProcessor worker, long frameSequence, List<BufferedImage> images, boolean detected, Point position,
+                Map<TrackedObjectColor, Point> positions, Map<VideoProcessor.ProcessType, Point> detections,
+                int frameWidth, int frameHeight) {
+            this.worker = worker;
+            this.frameSequence = frameSequence;
+            this.images = images;
+            this.detected = detected;
+            this.position = position;
+            this.positions = positions;
+            this.detections = detections;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+        }
+    }
+
+    private final VideoProcessor vp;
+    // All the workers, and the ones ready to take a frame
+    private final List<VideoProcessor> workers = new ArrayList<>();
+    private final BlockingQueue<VideoProcessor> idle;
+    // One thread per worker
+    private final ExecutorService threads;
+    private final ReorderBuffer<Result> reorder;
+    // Sequence of the next dispatched frame
+    private long sequence;
+    // Cleared on shutdown so a blocked submitter gives up
+    private volatile boolean running = true;
+
+    ParallelFrameProcessor(VideoProcessor vp, int workers) {
+        this.vp = vp;
+        idle = new ArrayBlockingQueue<>(workers);
+        for (int i = 0; i < workers; i++) {
+            VideoProcessor worker = vp.createWorker();
+            this.workers.add(worker);
+            idle.add(worker);
+        }
+        threads = Executors.newFixedThreadPool(workers, (Runnable r) -> {
+            Thread t = new Thread(r, "frame-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        reorder = new ReorderBuffer<>(new ReorderBuffer.Sink<Result>() {
+            @Override
+            public void deliver(long sequence, Result result) {
+                try {
+                    vp.detectionProcessed(result.frameSequence, result.detected, result.position, result.positions,
+                            result.detections, result.frameWidth, result.frameHeight);
+                    if (result.images != null) {
+                        vp.imagesProcessed(result.images, result.frameSequence);
+                    }
+                } finally {
+                    release(result.worker);
+                }
+            }
+
+            @Override
+            public void drop(long sequence, Result result) {
+                release(result.worker);
+            }
+        }, 0, MAX_DELAY_NANOS);
+    }
+
+    /**
+     * Hands a frame to the next idle worker. Blocks while every worker is
+     * busy.
+     *
+     * @param image the frame
+     * @param frameSequence sequence number of the frame
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void submit(BufferedImage image, long frameSequence) throws InterruptedException {
+        VideoProcessor worker = null;
+        while (running && worker == null) {
+            // Results waiting for a frame that is not coming back free their workers
+            reorder.expire();
+            worker = idle.poll(100, TimeUnit.MILLISECONDS);
+        }
+        if (worker == null) {
+            return;
+        }
+        // Workers always process with the latest settings
+        vp.configureWorker(worker);
+        final VideoProcessor w = worker;
+        final long seq = sequence++;
+        threads.execute(() -> {
+            boolean offered = false;
+            try {
+                List<BufferedImage> images = w.processFrame(image, frameSequence);
+                Result result = new Result(w, frameSequence, images, w.ObjectDetected(), w.getTrackedObject(),
+                        w.getColorPositions(), w.getEnsembleDetections(), image.getWidth(), image.getHeight());
+                offered = true;
+                reorder.offer(seq, result);
+            } catch (RuntimeException e) {
+                System.err.println("Exception processing a frame: " + e);
+            } finally {
+                if (!offered) {
+                    // Nothing to deliver: do not keep the later frames waiting, nor the worker
+                    reorder.skip(seq);
+                    release(w);
+                }
+            }
+        });
+    }
+
+    private void release(VideoProcessor worker) {
+        idle.offer(worker);
+    }
+
+    /**
+     * @return the number of results dropped for arriving out of order
+     */
+    long getDropped() {
+        return reorder.getDropped();
+    }
+
+    void shutdown() {
+        running = false;
+        threads.shutdownNow();
+        // Background threads of the workers, if any
+        workers.forEach(VideoProcessor::shutdown);
+    }
+}
+
+// EOF
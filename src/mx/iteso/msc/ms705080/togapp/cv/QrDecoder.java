@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * QR code decoder working straight on gray scale Mats. The reader and its
+ * hints are created once; a decoder is not thread safe, so every
+ * {@link VideoProcessor} has its own.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class QrDecoder {
+
+    private final QRCodeReader reader = new QRCodeReader();
+    private final boolean tryHarder;
+    private final Map<DecodeHintType, Object> hints;
+    // Pixels of the last image, reused for the next one
+    private byte[] buffer;
+    // Text of the last code found
+    private String text;
+
+    /**
+     * @param tryHarder true to spend more time looking for the code
+     */
+    QrDecoder(boolean tryHarder) {
+        this.tryHarder = tryHarder;
+        if (tryHarder) {
+            Map<DecodeHintType, Object> map = new EnumMap<>(DecodeHintType.class);
+            map.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+            hints = Collections.unmodifiableMap(map);
+        } else {
+            hints = null;
+        }
+    }
+
+    /**
+     * @return whether the reader spends more time looking for the code
+     */
+    boolean isTryHarder() {
+        return tryHarder;
+    }
+
+    /**
+     * @return the text of the last code found, or null
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Looks for a QR code.
+     *
+     * @param gray the image, CV_8UC1
+     * @param area part of the image to search, or null for all of it
+     * @param scale factor from image to frame coordinates
+     * @return the finder patterns in frame coordinates, or null if no code
+     * was found
+     */
+    ResultPoint[] decode(Mat gray, Rect area, double scale) {
+        // Only the searched area is read out of the Mat
+        Mat view = area != null ? gray.submat(area) : gray;
+        Result result;
+        try {
+            MatLuminanceSource source = new MatLuminanceSource(view, buffer);
+            buffer = source.getBuffer();
+            result = reader.decode(new BinaryBitmap(new HybridBinarizer(source)), hints);
+        } catch (ReaderException ex) {
+            return null;
+        } finally {
+            reader.reset();
+            if (view != gray) {
+                view.release();
+            }
+        }
+        text = result.getText();
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null) {
+            return null;
+        }
+        int x = area != null ? area.x : 0;
+        int y = area != null ? area.y : 0;
+        ResultPoint[] mapped = new ResultPoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            mapped[i] = new ResultPoint((float) ((points[i].getX() + x) * scale), (float) ((points[i].getY() + y) * scale));
+        }
+        return mapped;
+    }
+}
+
+// EOF
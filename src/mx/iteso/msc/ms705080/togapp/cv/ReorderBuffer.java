@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Puts results computed out of order back in sequence order. A result is
+ * held until every earlier sequence has been delivered or skipped; if the
+ * oldest held result waits too long, the missing sequences are given up on
+ * and their results are dropped when they finally arrive. The sink is called
+ * outside the lock of the buffer, by one thread at a time and in order, so a
+ * slow listener does not hold up the producers offering results.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ * @param <T> result type
+ */
+class ReorderBuffer<T> {
+
+    /**
+     * Receives the results, always in increasing sequence order.
+     *
+     * @param <T> result type
+     */
+    interface Sink<T> {
+
+        void deliver(long sequence, T result);
+
+        void drop(long sequence, T result);
+    }
+
+    /**
+     * A result handed to the sink.
+     */
+    private static class Outcome<T> {
+
+        final long sequence;
+        final T result;
+        final boolean delivered;
+
+        Outcome(long sequence, T result, boolean delivered) {
+            this.sequence = sequence;
+            this.result = result;
+            this.delivered = delivered;
+        }
+    }
+
+    // Placeholder of a sequence that will never have a result
+    private static final Object SKIPPED = new Object();
+
+    private final Sink<T> sink;
+    // Max time a result is held while waiting for an earlier one
+    private final long maxDelayNanos;
+    // Held results (or SKIPPED), by sequence
+    private final TreeMap<Long, Object> pending = new TreeMap<>();
+    // Arrival time of each held result
+    private final TreeMap<Long, Long> arrivals = new TreeMap<>();
+    // Results ready for the sink, and whether a thread is passing them on
+    private final ArrayDeque<Outcome<T>> outcomes = new ArrayDeque<>();
+    private boolean draining;
+    // Next sequence to deliver
+    private long next;
+    // Counters
+    private long delivered;
+    private long dropped;
+
+    ReorderBuffer(Sink<T> sink, long firstSequence, long maxDelayNanos) {
+        this.sink = sink;
+        this.next = firstSequence;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Adds a result and delivers everything that is now in order.
+     *
+     * @param sequence sequence of the result
+     * @param result the result
+     */
+    void offer(long sequence, T result) {
+        synchronized (this) {
+            if (sequence < next) {
+                // Its turn already passed
+                dropped++;
+                outcomes.add(new Outcome<>(sequence, result, false));
+            } else {
+                pending.put(sequence, result);
+                arrivals.put(sequence, System.nanoTime());
+                flush();
+                expire(System.nanoTime());
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Reports a sequence that will never have a result (e.g. its processing
+     * failed), so the later ones do not wait for it.
+     *
+     * @param sequence the missing sequence
+     */
+    void skip(long sequence) {
+        synchronized (this) {
+            if (sequence < next) {
+                return;
+            }
+            pending.put(sequence, SKIPPED);
+            arrivals.put(sequence, System.nanoTime());
+            flush();
+        }
+        drain();
+    }
+
+    /**
+     * Gives up on the missing sequences if the oldest held result waited too
+     * long. Called on every offer and meant to be called regularly too, since
+     * the results still to come may never arrive.
+     */
+    void expire() {
+        synchronized (this) {
+            expire(System.nanoTime());
+        }
+        drain();
+    }
+
+    private void expire(long now) {
+        while (!pending.isEmpty() && now - arrivals.firstEntry().getValue() > maxDelayNanos) {
+            next = pending.firstKey();
+            flush();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flush() {
+        while (!pending.isEmpty() && pending.firstKey() == next) {
+            Map.Entry<Long, Object> entry = pending.pollFirstEntry();
+            arrivals.remove(entry.getKey());
+            next++;
+            if (entry.getValue() != SKIPPED) {
+                delivered++;
+                outcomes.add(new Outcome<>(entry.getKey(), (T) entry.getValue(), true));
+            }
+        }
+    }
+
+    /**
+     * Hands the ready results to the sink, unless another thread is doing it
+     * already (it will pick these up as well).
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Outcome<T> outcome;
+            synchronized (this) {
+                outcome = outcomes.poll();
+                if (outcome == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                if (outcome.delivered) {
+                    sink.deliver(outcome.sequence, outcome.result);
+                } else {
+                    sink.drop(outcome.sequence, outcome.result);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Exception delivering a result: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of results delivered
+     */
+    synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the number of results dropped for arriving too late
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
+
+// EOF
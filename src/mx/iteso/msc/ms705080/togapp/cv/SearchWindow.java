@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import org.opencv.core.Rect;
+
+/**
+ * Region of interest for the next frame, centered on the last detection. The
+ * window covers the object bounding box plus a margin that accounts for its
+ * recent motion, grows with every miss and is given up (full frame search)
+ * after {@link #MAX_MISSES} consecutive misses.
+ * <p>
+ * The window of a frame can be chosen before the detection of the previous
+ * frames is known (the pipelined execution preprocesses a frame while the
+ * previous one is still in detection). The window is then moved and widened
+ * by the motion of the frames in between.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class SearchWindow {
+
+    // Consecutive misses before going back to full frame search
+    static final int MAX_MISSES = 5;
+    // Minimum margin around the object, in pixels
+    private static final int MIN_MARGIN = 32;
+    // How many frames of motion the margin covers
+    private static final double MOTION_FRAMES = 2.0d;
+
+    // Last bounding box, null if there is nothing to follow
+    private Rect box;
+    // Motion between the last two detections, in pixels per frame
+    private double vx, vy;
+    private int misses;
+    // Windows handed out whose detection has not been recorded yet
+    private int pending;
+    // Statistics
+    private long hits;
+    private long windowMisses;
+    private long fullFrameSearches;
+    private double windowFractionSum;
+    private long windowSearches;
+
+    /**
+     * Computes the area to search in the next frame.
+     *
+     * @param cols frame width
+     * @param rows frame height
+     * @return the window, or null to search the full frame
+     */
+    synchronized Rect next(int cols, int rows) {
+        // Frames from the last recorded detection to this one
+        int ahead = 1 + pending++;
+        if (box == null) {
+            fullFrameSearches++;
+            return null;
+        }
+        // Grow the window with every miss
+        double growth = 1.0d + misses;
+        double frames = MOTION_FRAMES + ahead - 1;
+        double marginX = (Math.max(MIN_MARGIN, box.width) + Math.abs(vx) * frames) * growth;
+        double marginY = (Math.max(MIN_MARGIN, box.height) + Math.abs(vy) * frames) * growth;
+        // Center on where the object should be now
+        double cx = box.x + box.width / 2.0d + vx * ahead;
+        double cy = box.y + box.height / 2.0d + vy * ahead;
+        int x0 = (int) Math.max(0, cx - box.width / 2.0d - marginX);
+        int y0 = (int) Math.max(0, cy - box.height / 2.0d - marginY);
+        int x1 = (int) Math.min(cols, cx + box.width / 2.0d + marginX);
+        int y1 = (int) Math.min(rows, cy + box.height / 2.0d + marginY);
+        if (x1 - x0 <= 0 || y1 - y0 <= 0 || (x1 - x0) * (y1 - y0) >= cols * rows) {
+            fullFrameSearches++;
+            return null;
+        }
+        windowSearches++;
+        windowFractionSum += (x1 - x0) * (double) (y1 - y0) / (cols * (double) rows);
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Records a detection.
+     *
+     * @param found bounding box of the object, in frame coordinates
+     * @param inWindow true if it was found inside a window
+     */
+    synchronized void hit(Rect found, boolean inWindow) {
+        recorded();
+        if (box != null) {
+            vx = (found.x + found.width / 2.0d) - (box.x + box.width / 2.0d);
+            vy = (found.y + found.height / 2.0d) - (box.y + box.height / 2.0d);
+        } else {
+            vx = 0;
+            vy = 0;
+        }
+        box = found;
+        misses = 0;
+        if (inWindow) {
+            hits++;
+        }
+    }
+
+    /**
+     * Records a frame without detection.
+     *
+     * @param inWindow true if only a window was searched
+     */
+    synchronized void miss(boolean inWindow) {
+        recorded();
+        if (inWindow) {
+            windowMisses++;
+        }
+        if (++misses >= MAX_MISSES) {
+            reset();
+        }
+    }
+
+    private void recorded() {
+        if (pending > 0) {
+            pending--;
+        }
+    }
+
+    /**
+     * Forgets the last detection, the next frame is searched completely.
+     */
+    synchronized void reset() {
+        box = null;
+        vx = 0;
+        vy = 0;
+        misses = 0;
+        pending = 0;
+    }
+
+    /**
+     * @return the last bounding box, or null if there is nothing to follow
+     */
+    synchronized Rect getBox() {
+        return box;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return windowMisses;
+    }
+
+    synchronized long getFullFrameSearches() {
+        return fullFrameSearches;
+    }
+
+    /**
+     * @return average window area as a fraction of the frame, over the frames
+     * searched with a window
+     */
+    synchronized double getAverageWindowFraction() {
+        return windowSearches > 0 ? windowFractionSum / windowSearches : 1.0d;
+    }
+}
+
+// EOF
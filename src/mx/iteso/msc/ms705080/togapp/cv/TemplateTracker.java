@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Follows an object between detections by template matching in a small area
+ * around its last position. Matching runs on a reduced copy so the template
+ * is about {@link #TEMPLATE_SIZE} pixels wide whatever the object size.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class TemplateTracker {
+
+    // Width of the reduced template, in pixels
+    private static final int TEMPLATE_SIZE = 32;
+    // Below this matching score the object is lost
+    static final double MIN_SCORE = 0.6d;
+
+    private final Mat template = new Mat();
+    private final Mat search = new Mat();
+    private final Mat scores = new Mat();
+    // Last position, in frame coordinates; null when not tracking
+    private Rect box;
+    // Frame to reduced copy factor
+    private double scale;
+    // Score of the last match
+    private double score;
+
+    /**
+     * Starts tracking an object.
+     *
+     * @param gray frame the object was detected in
+     * @param box bounding box of the object in that frame
+     */
+    void init(Mat gray, Rect box) {
+        Rect clipped = clip(box, gray);
+        if (clipped == null) {
+            reset();
+            return;
+        }
+        scale = Math.max(1.0d, clipped.width / (double) TEMPLATE_SIZE);
+        Mat view = gray.submat(clipped);
+        Imgproc.resize(view, template, reduced(clipped), 0, 0, Imgproc.INTER_AREA);
+        view.release();
+        this.box = clipped;
+        score = 1.0d;
+    }
+
+    /**
+     * Looks for the object around its last position.
+     *
+     * @param gray the current frame
+     * @return the new bounding box, or null if the object was lost
+     */
+    Rect update(Mat gray) {
+        if (box == null) {
+            return null;
+        }
+        // Half the object size in every direction
+        Rect area = clip(new Rect(box.x - box.width / 2, box.y - box.height / 2, box.width * 2, box.height * 2), gray);
+        if (area == null) {
+            reset();
+            return null;
+        }
+        Mat view = gray.submat(area);
+        Imgproc.resize(view, search, reduced(area), 0, 0, Imgproc.INTER_AREA);
+        view.release();
+        if (search.cols() < template.cols() || search.rows() < template.rows()) {
+            reset();
+            return null;
+        }
+        Imgproc.matchTemplate(search, template, scores, Imgproc.TM_CCOEFF_NORMED);
+        Core.MinMaxLocResult best = Core.minMaxLoc(scores);
+        score = best.maxVal;
+        if (score < MIN_SCORE) {
+            reset();
+            return null;
+        }
+        box = new Rect(area.x + (int) Math.round(best.maxLoc.x * scale), area.y + (int) Math.round(best.maxLoc.y * scale),
+                box.width, box.height);
+        return box;
+    }
+
+    /**
+     * @return the score of the last match, 0 when not tracking
+     */
+    double getScore() {
+        return box != null ? score : 0.0d;
+    }
+
+    void reset() {
+        box = null;
+        score = 0.0d;
+    }
+
+    private Size reduced(Rect rect) {
+        return new Size(Math.max(1, Math.round(rect.width / scale)), Math.max(1, Math.round(rect.height / scale)));
+    }
+
+    private static Rect clip(Rect rect, Mat frame) {
+        int x0 = Math.max(0, rect.x);
+        int y0 = Math.max(0, rect.y);
+        int x1 = Math.min(frame.cols(), rect.x + rect.width);
+        int y1 = Math.min(frame.rows(), rect.y + rect.height);
+        return x1 > x0 && y1 > y0 ? new Rect(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+}
+
+// EOF
@@ -15,17 +15,17 @@
  */
 package mx.iteso.msc.ms705080.togapp.cv;
 
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 /**
@@ -35,41 +35,167 @@ import org.opencv.imgproc.Imgproc;
 public class Util {
 
     public static Mat Image2Mat(BufferedImage frame) {
-        Mat result = new Mat(frame.getHeight(), frame.getWidth(), CvType.CV_8UC3);
+        return Image2Mat(frame, new Mat());
+    }
 
-        DataBufferByte data = (DataBufferByte) frame.getRaster().getDataBuffer();
-        result.put(0, 0, data.getData());
+    /**
+     * Copies the pixels of an image into a BGR (or gray) Mat. The destination
+     * Mat is only reallocated when the frame size or type changes, so callers
+     * can keep passing the same instance for every frame. Whole BGR, gray and
+     * packed RGB rasters are copied directly; subimages, premultiplied alpha
+     * and anything else go through Java2D.
+     *
+     * @param frame the image to convert
+     * @param result the Mat to fill
+     * @return the filled Mat, CV_8UC1 for TYPE_BYTE_GRAY images and CV_8UC3
+     * otherwise
+     */
+    public static Mat Image2Mat(BufferedImage frame, Mat result) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
 
+        switch (frame.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if (isWholeRaster(frame, 3)) {
+                    // Same byte layout as OpenCV, copy as is
+                    result.create(height, width, CvType.CV_8UC3);
+                    result.put(0, 0, ((DataBufferByte) frame.getRaster().getDataBuffer()).getData());
+                    return result;
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if (isWholeRaster(frame, 1)) {
+                    result.create(height, width, CvType.CV_8UC1);
+                    result.put(0, 0, ((DataBufferByte) frame.getRaster().getDataBuffer()).getData());
+                    return result;
+                }
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                // Packed 0xAARRGGBB pixels (what the H.264 decoder hands us), unpack to BGR;
+                // premultiplied pixels would need the alpha divided out, left to Java2D
+                if (isWholeRaster(frame, 1)) {
+                    result.create(height, width, CvType.CV_8UC3);
+                    int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+                    byte[] bgr = buffer(width * height * 3);
+                    for (int i = 0, j = 0; i < pixels.length; i++) {
+                        int pixel = pixels[i];
+                        bgr[j++] = (byte) pixel;
+                        bgr[j++] = (byte) (pixel >> 8);
+                        bgr[j++] = (byte) (pixel >> 16);
+                    }
+                    result.put(0, 0, bgr);
+                    return result;
+                }
+                break;
+            default:
+                break;
+        }
+        // Anything else: let Java2D do the color conversion
+        BufferedImage converted = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = converted.createGraphics();
+        // Copy the colors, dropping the alpha as the packed path does, instead of blending over black
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(frame, 0, 0, null);
+        g.dispose();
+        result.create(height, width, CvType.CV_8UC3);
+        result.put(0, 0, ((DataBufferByte) converted.getRaster().getDataBuffer()).getData());
         return result;
     }
 
+    /**
+     * @param frame an image
+     * @param elements data elements per pixel
+     * @return whether the data buffer holds exactly the pixels of the image,
+     * row after row from its start (not a subimage of a larger raster)
+     */
+    private static boolean isWholeRaster(BufferedImage frame, int elements) {
+        WritableRaster raster = frame.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        int size = frame.getWidth() * frame.getHeight() * elements;
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return false;
+        }
+        if (buffer instanceof DataBufferByte) {
+            return ((DataBufferByte) buffer).getData().length == size;
+        }
+        return buffer instanceof DataBufferInt && ((DataBufferInt) buffer).getData().length == size;
+    }
+
     public static BufferedImage Mat2Image(Mat frame) {
-        // Create a temporary buffer
-        MatOfByte buffer = new MatOfByte();
-        // Encode the frame in the buffer, according to the PNG format
-        Imgcodecs.imencode(".png", frame, buffer);
-        // Build and return an Image created from the image encoded in the buffer
-        // Return new BufferedImage(new ByteArrayInputStream(buffer.toArray()));
-        BufferedImage img = null;
-        try {
-            img = ImageIO.read(new ByteArrayInputStream(buffer.toArray()));
-        } catch (IOException e) {
-            // log the error
-            System.err.println("Exception while converting frame: " + e);
+        return Mat2Image(frame, null);
+    }
+
+    /**
+     * Copies the pixels of a 8-bit Mat straight into the raster of an image.
+     * The given image is reused when it matches the Mat size and type,
+     * otherwise a new one is created.
+     *
+     * @param frame a CV_8UC1, CV_8UC3 (BGR) or CV_8UC4 (BGRA) Mat
+     * @param image the image to reuse, may be null
+     * @return the image holding the frame
+     */
+    public static BufferedImage Mat2Image(Mat frame, BufferedImage image) {
+        int type;
+        switch (frame.channels()) {
+            case 1:
+                type = BufferedImage.TYPE_BYTE_GRAY;
+                break;
+            case 3:
+                type = BufferedImage.TYPE_3BYTE_BGR;
+                break;
+            case 4:
+                type = BufferedImage.TYPE_4BYTE_ABGR;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported number of channels: " + frame.channels());
         }
-        return img;
+        if (image == null || image.getType() != type || image.getWidth() != frame.cols() || image.getHeight() != frame.rows()) {
+            image = new BufferedImage(frame.cols(), frame.rows(), type);
+        }
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        frame.get(0, 0, data);
+        if (type == BufferedImage.TYPE_4BYTE_ABGR) {
+            // OpenCV stores BGRA, Java2D expects ABGR
+            for (int i = 0; i < data.length; i += 4) {
+                byte a = data[i + 3];
+                data[i + 3] = data[i + 2];
+                data[i + 2] = data[i + 1];
+                data[i + 1] = data[i];
+                data[i] = a;
+            }
+        }
+        return image;
+    }
+
+    // Scratch buffer for packed pixel conversions, one per thread
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<>();
+
+    private static byte[] buffer(int size) {
+        byte[] buffer = SCRATCH.get();
+        if (buffer == null || buffer.length != size) {
+            buffer = new byte[size];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
     }
 
     public static void DrawCrosshairs(Mat frame, int x, int y) {
         // Show crosshair
-        Imgproc.circle(frame, new Point(x, y), 20, new Scalar(0, 255, 0), 2);
-        Imgproc.line(frame, new Point(x, y), new Point(x, y - 25), new Scalar(0, 255, 0), 2);
-        Imgproc.line(frame, new Point(x, y), new Point(x, y + 25), new Scalar(0, 255, 0), 2);
-        Imgproc.line(frame, new Point(x, y), new Point(x - 25, y), new Scalar(0, 255, 0), 2);
-        Imgproc.line(frame, new Point(x, y), new Point(x + 25, y), new Scalar(0, 255, 0), 2);
-        Imgproc.putText(frame, "Tracking object at (" + x + "," + y + ")", new Point(x, y), 1, 1, new Scalar(255, 0, 0), 2);
+        Point center = new Point(x, y);
+        Imgproc.circle(frame, center, 20, CROSSHAIR_COLOR, 2);
+        Imgproc.line(frame, center, new Point(x, y - 25), CROSSHAIR_COLOR, 2);
+        Imgproc.line(frame, center, new Point(x, y + 25), CROSSHAIR_COLOR, 2);
+        Imgproc.line(frame, center, new Point(x - 25, y), CROSSHAIR_COLOR, 2);
+        Imgproc.line(frame, center, new Point(x + 25, y), CROSSHAIR_COLOR, 2);
+        Imgproc.putText(frame, "Tracking object at (" + x + "," + y + ")", center, 1, 1, LABEL_COLOR, 2);
     }
 
+    // Crosshair colors
+    private static final Scalar CROSSHAIR_COLOR = new Scalar(0, 255, 0);
+    private static final Scalar LABEL_COLOR = new Scalar(255, 0, 0);
+
 }
 
 // EOF
@@ -15,26 +15,40 @@
  */
 package mx.iteso.msc.ms705080.togapp.cv;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.RGBLuminanceSource;
-import com.google.zxing.Result;
 import com.google.zxing.ResultPoint;
-import com.google.zxing.common.HybridBinarizer;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import mx.iteso.msc.ms705080.togapp.DroneManager;
 import mx.iteso.msc.ms705080.togapp.TrackedObject;
 import mx.iteso.msc.ms705080.togapp.TrackedObjectColor;
+import mx.iteso.msc.ms705080.togapp.metrics.FlightRecorderEvents;
+import mx.iteso.msc.ms705080.togapp.metrics.RateMeter;
+import mx.iteso.msc.ms705080.togapp.metrics.Stage;
+import mx.iteso.msc.ms705080.togapp.metrics.StageTimings;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfRect;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
@@ -43,6 +57,7 @@ import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 import org.opencv.objdetect.Objdetect;
+import org.opencv.video.Video;
 
 /**
  *
@@ -60,16 +75,26 @@ public class VideoProcessor {
 
     // Listeners to notify
     private final List<ChannelValuesListener> listeners = new ArrayList<>();
+    private final List<ProcessedImagesListener> imageListeners = new ArrayList<>();
+    private final List<DetectionListener> detectionListeners = new CopyOnWriteArrayList<>();
     // Face size
     private int absoluteFaceSize;
     // OpenCV classifier for face detection
     private final CascadeClassifier faceCascade;
     // A flag to determinate if a tracked object exists on screen
-    private boolean objectDetected;
+    private volatile boolean objectDetected;
     // The center of the currently tracked object
-    private Point trackedObject = new Point(0.0d, 0.0d);
+    private volatile Point trackedObject = new Point(0.0d, 0.0d);
     // Predefined object to track
     private TrackedObject objectColor = new TrackedObject(TrackedObjectColor.YELLOW);
+    // Objects tracked at once in multi color mode
+    private volatile ColorTable colorTable = new ColorTable(Arrays.asList(
+            new TrackedObject(TrackedObjectColor.BLUE),
+            new TrackedObject(TrackedObjectColor.GREEN),
+            new TrackedObject(TrackedObjectColor.YELLOW),
+            new TrackedObject(TrackedObjectColor.RED)));
+    // Center of each color found in the last frame (multi color mode)
+    private volatile Map<TrackedObjectColor, Point> colorPositions = Collections.emptyMap();
     // A flag to determinate if mouse was clicked in an area so we can select the color around that section
     private boolean mouseClicked;
     // Mouse coordinates
@@ -82,482 +107,2047 @@ public class VideoProcessor {
     // Drone Manager
     private final DroneManager dm;
     // Current detection algorithm
-    private ProcessType type;
+    private volatile ProcessType type;
+    // How frames are scheduled across threads
+    private volatile ExecutionMode executionMode = ExecutionMode.SEQUENTIAL;
+    // Stage threads, created on first use
+    private FramePipeline pipeline;
+    // Frame workers, created on first use
+    private ParallelFrameProcessor parallel;
+    private int parallelWorkers = Math.max(2, Runtime.getRuntime().availableProcessors() - 2);
+    // Split the color pipelines in horizontal strips processed in parallel
+    private volatile boolean tiledProcessing = false;
+    private volatile int tileCount = Runtime.getRuntime().availableProcessors();
+    // Number of subscribers of each preview output (shared with the frame workers)
+    private AtomicIntegerArray previewSubscribers = new AtomicIntegerArray(PreviewOutput.values().length);
+    // Time spent in each stage (shared with the frame workers)
+    private StageTimings timings = new StageTimings();
+    // Frames through the detection stage, and how many had the object (shared with the frame workers)
+    private LongAdder framesProcessed = new LongAdder();
+    private LongAdder framesDetected = new LongAdder();
+    // Frames through the detection stage per second (shared with the frame workers)
+    private RateMeter processingRate = new RateMeter(1, TimeUnit.SECONDS);
+    // Sequence of the frame the current detection state comes from
+    private volatile long detectionSequence;
+    // Emit coordinates only, no images at all
+    private volatile boolean trackingOnly = false;
+    // Search around the last detection (color, face and QR pipelines)
+    private volatile boolean roiTracking = false;
+    private final SearchWindow searchWindow = new SearchWindow();
+    private final SearchWindow faceWindow = new SearchWindow();
+    private final SearchWindow qrWindow = new SearchWindow();
+    // Ensemble mode: every color detector follows its own object
+    private final Map<ProcessType, SearchWindow> colorWindows = colorWindows();
+    // QR decoding, created on first use
+    private QrDecoder qrDecoder;
+    private volatile boolean qrTryHarder = false;
+    // Try a half resolution copy before the full frame
+    private volatile boolean qrDownscale = false;
+    // Decode on a background thread, optical flow on the finder patterns in between
+    private volatile boolean asyncQrDetection = false;
+    private volatile int qrDecodeInterval = 15;
+    private AsyncDetection<QrDetection> qrDetector;
+    private QrDecoder backgroundQrDecoder;
+    private int framesSinceQrDecode;
+    // Finder patterns being followed and the frame they are in
+    private boolean qrLocked;
+    private final Mat qrPrevious = new Mat();
+    private final MatOfPoint2f qrPoints = new MatOfPoint2f();
+    private final MatOfPoint2f qrNext = new MatOfPoint2f();
+    private final MatOfByte qrStatus = new MatOfByte();
+    private final MatOfFloat qrError = new MatOfFloat();
+    private static final Size QR_FLOW_WINDOW = new Size(21, 21);
+    private static final int QR_FLOW_LEVELS = 3;
+    // Text of the last decoded code
+    private volatile String qrPayload;
+    // Frames whose code position came from a fresh decode and from the flow
+    private volatile long qrDecodeFrames;
+    private volatile long qrTrackingFrames;
+    // Pyramid level faces are searched at (0 full resolution, 1 half, 2 quarter...)
+    private volatile int faceDetectionLevel = 0;
+    // Face sizes searched around the last face, relative to it
+    private static final double FACE_MIN_RATIO = 0.7d;
+    private static final double FACE_MAX_RATIO = 1.5d;
+    // Cascade on a background thread, template tracker in between
+    private volatile boolean asyncFaceDetection = false;
+    private volatile int faceDetectionInterval = 10;
+    private AsyncDetection<FaceDetection> faceDetector;
+    private final TemplateTracker faceTracker = new TemplateTracker();
+    private int framesSinceFaceDetection;
+    // Below this tracking score the cascade runs again right away
+    private static final double FACE_REDETECT_SCORE = 0.8d;
+    // Frames whose face came from the cascade and from the tracker
+    private volatile long faceDetectionFrames;
+    private volatile long faceTrackingFrames;
+    // Detectors run together on every frame, in priority order (empty for a single type)
+    private volatile List<ProcessType> ensemble = Collections.emptyList();
+    // Position found by each of them in the last frame
+    private volatile Map<ProcessType, Point> ensembleDetections = Collections.emptyMap();
+    // Strips thinner than this are not worth a task
+    private static final int MIN_TILE_HEIGHT = 64;
+    // Preallocated buffers, one set per detection algorithm
+    private final Map<ProcessType, Workspace> workspaces = new EnumMap<>(ProcessType.class);
+    // Drawing colors
+    private static final Scalar CONTOUR_COLOR = new Scalar(250, 0, 0);
+    private static final Scalar FACE_COLOR = new Scalar(0, 255, 0, 255);
+    private static final Scalar CALIBRATION_COLOR = new Scalar(255, 0, 255);
+    private static final Scalar WINDOW_COLOR = new Scalar(0, 255, 255);
+    private static final Scalar BLACK = new Scalar(0, 0, 0, 0);
+    private static final Scalar ZERO = new Scalar(0);
+    private static final Scalar WHITE = new Scalar(255);
+    // Default anchor (the kernel center)
+    private static final Point ANCHOR = new Point(-1, -1);
+    private static final Point ORIGIN = new Point(0, 0);
+    // Classifier for face detection, copied once out of the class path so it loads from a jar or any OS
+    private static final String FACE_CASCADE = "/mx/iteso/msc/ms705080/togapp/resources/lbpcascade_frontalface.xml";
+    private static String faceCascadeFile;
+    // Calibration patch: half side, in pixels, and percentiles taken as bounds
+    private static final int CALIBRATION_RADIUS = 50;
+    private static final double CALIBRATION_LOW_PERCENTILE = 0.05d;
+    private static final double CALIBRATION_HIGH_PERCENTILE = 0.95d;
+
+    /**
+     * Result of a background face detection.
+     */
+    private static class FaceDetection {
+
+        // Frame the faces were found in
+        final Mat gray;
+        // In frame coordinates
+        final Rect[] faces;
+
+        FaceDetection(Mat gray, Rect[] faces) {
+            this.gray = gray;
+            this.faces = faces;
+        }
+    }
+
+    /**
+     * Result of a background QR decode.
+     */
+    private static class QrDetection {
+
+        // Frame the code was decoded from
+        final Mat gray;
+        // Finder patterns, null if there was no code
+        final Point[] points;
+        final String text;
+
+        QrDetection(Mat gray, Point[] points, String text) {
+            this.gray = gray;
+            this.points = points;
+            this.text = text;
+        }
+    }
 
     public enum ProcessType {
         COLOR_RGB,
         COLOR_HSV,
         PRECONFIG_HSV,
+        MULTI_COLOR_HSV,
         FACE_DETECTION,
         QR_DETECTION
     }
 
+    /**
+     * Images produced for each frame, in list order. What the intermediate
+     * steps hold depends on the algorithm.
+     */
+    public enum PreviewOutput {
+        /**
+         * The annotated frame.
+         */
+        FRAME,
+        /**
+         * The converted frame: HSV, BGRA or gray.
+         */
+        CONVERTED,
+        /**
+         * Eroded mask (color), equalized (faces) or blurred (QR) frame.
+         */
+        FIRST_STEP,
+        /**
+         * Dilated mask (color) or binarized frame (QR).
+         */
+        SECOND_STEP
+    }
+
+    public enum ExecutionMode {
+        /**
+         * Every stage of a frame runs on the caller thread.
+         */
+        SEQUENTIAL,
+        /**
+         * Preprocessing, detection and rendering run on separate threads, so
+         * consecutive frames overlap.
+         */
+        PIPELINED,
+        /**
+         * Consecutive frames are processed concurrently by a pool of workers
+         * and their results put back in order; meant for the expensive
+         * algorithms (faces, QR).
+         */
+        FRAME_PARALLEL
+    }
+
     public VideoProcessor(DroneManager dm, int width, int height) {
         this.dm = dm;
         // Load classifier for face detection
-        faceCascade = new CascadeClassifier(getClass().getResource("/mx/iteso/msc/ms705080/togapp/resources/lbpcascade_frontalface.xml").getFile().substring(1).replace("/", "\\").replace("%20", " "));
+        faceCascade = loadFaceCascade();
         absoluteFaceSize = 0;
         this.width = width;
         this.height = height;
         this.objectDetected = false;
     }
 
+    /**
+     * @return the face classifier, empty if it could not be loaded
+     */
+    private static CascadeClassifier loadFaceCascade() {
+        String file = faceCascadeFile();
+        CascadeClassifier classifier = file != null ? new CascadeClassifier(file) : new CascadeClassifier();
+        if (classifier.empty()) {
+            System.err.println("Could not load the face classifier " + FACE_CASCADE);
+        }
+        return classifier;
+    }
+
+    /**
+     * OpenCV only reads classifiers from files, so the resource is copied to
+     * a temporary file the first time.
+     */
+    private static synchronized String faceCascadeFile() {
+        if (faceCascadeFile == null) {
+            try (InputStream in = VideoProcessor.class.getResourceAsStream(FACE_CASCADE)) {
+                if (in == null) {
+                    return null;
+                }
+                Path file = Files.createTempFile("lbpcascade_frontalface", ".xml");
+                file.toFile().deleteOnExit();
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                faceCascadeFile = file.toString();
+            } catch (IOException e) {
+                System.err.println("Exception copying the face classifier: " + e);
+            }
+        }
+        return faceCascadeFile;
+    }
+
+    /**
+     * @return whether the face classifier was loaded, without it
+     * {@link ProcessType#FACE_DETECTION} fails on every frame
+     */
+    public boolean isFaceDetectionAvailable() {
+        return !faceCascade.empty();
+    }
+
     public void addListener(ChannelValuesListener listener) {
         listeners.add(listener);
     }
 
+    public void addListener(ProcessedImagesListener listener) {
+        imageListeners.add(listener);
+    }
+
+    public void addListener(DetectionListener listener) {
+        detectionListeners.add(listener);
+    }
+
     public void setTrackedObjectColor(TrackedObject trackedObject) {
         this.objectColor = trackedObject;
     }
 
-    private Mat findAndDrawObjects(Mat maskedImage, Mat frame) {
-        return findAndDrawObjects(maskedImage, frame, new Scalar(250, 0, 0));
+    /**
+     * @return the objects tracked in multi color mode, in priority order
+     */
+    public List<TrackedObject> getTrackedObjects() {
+        return colorTable.getObjects();
     }
 
-    private Mat findAndDrawObjects(Mat maskedImage, Mat frame, Scalar color) {
-        // Init
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
+    /**
+     * @param trackedObjects the objects tracked in multi color mode (up to 8),
+     * in priority order: the first one found is the tracked object
+     */
+    public void setTrackedObjects(List<TrackedObject> trackedObjects) {
+        this.colorTable = new ColorTable(trackedObjects);
+    }
 
-        // Find contours
-        Imgproc.findContours(maskedImage, contours, hierarchy, Imgproc.RETR_CCOMP, Imgproc.CHAIN_APPROX_SIMPLE);
+    /**
+     * @return the center of each color found in the last frame, in multi
+     * color mode
+     */
+    public Map<TrackedObjectColor, Point> getColorPositions() {
+        return colorPositions;
+    }
 
-        // If any contour exist...
-        if (hierarchy.size().height > 0 && hierarchy.size().width > 0) {
-            // for each contour, draw a border
-            for (int idx = 0; idx >= 0; idx = (int) hierarchy.get(0, idx)[0]) {
-                Imgproc.drawContours(frame, contours, idx, color, 5);
-            }
+    /**
+     * Looks for a QR code in a whole gray scale image.
+     *
+     * @param frame the image, CV_8UC1
+     * @return the center of the code, or null if none was found
+     */
+    public Point readQRCode(Mat frame) {
+        return center(qrDecoder().decode(frame, null, 1.0d));
+    }
+
+    /**
+     * @return the center of the three finder patterns of a QR code, or null
+     */
+    private static Point center(ResultPoint[] points) {
+        if (points == null || points.length != 3) {
+            return null;
         }
-        return frame;
+        return new Point((points[0].getX() + points[1].getX() + points[2].getX()) / 3,
+                (points[0].getY() + points[1].getY() + points[2].getY()) / 3);
     }
 
-    public Point readQRCode(Mat frame) {
-        BufferedImage image = Util.Mat2Image(frame);
-        BinaryBitmap bitmap;
-        Map hintMap = new HashMap();
+    /**
+     * @return the bounding box of the finder patterns of a QR code
+     */
+    private static Rect bounds(ResultPoint[] points) {
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = 0, y1 = 0;
+        for (ResultPoint point : points) {
+            x0 = Math.min(x0, point.getX());
+            y0 = Math.min(y0, point.getY());
+            x1 = Math.max(x1, point.getX());
+            y1 = Math.max(y1, point.getY());
+        }
+        return new Rect(new Point(x0, y0), new Point(x1, y1));
+    }
 
-        hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
+    private QrDecoder qrDecoder() {
+        if (qrDecoder == null || qrDecoder.isTryHarder() != qrTryHarder) {
+            qrDecoder = new QrDecoder(qrTryHarder);
+        }
+        return qrDecoder;
+    }
+
+    /**
+     * First stage: everything that only depends on the frame itself (color
+     * conversion, thresholding, morphology).
+     *
+     * @param ws buffers holding the frame, tagged with its algorithm
+     */
+    void preprocess(Workspace ws) {
+        List<ProcessType> types = ensemble;
+        if (!types.isEmpty()) {
+            preprocessEnsemble(ws, types);
+        } else {
+            ws.active = null;
+            preprocessWith(ws);
+        }
+    }
 
-        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
-        RGBLuminanceSource source = new RGBLuminanceSource(image.getWidth(), image.getHeight(), pixels);
-        bitmap = new BinaryBitmap(new HybridBinarizer(source));
+    private void preprocessWith(Workspace ws) {
+        switch (ws.type) {
+            case COLOR_RGB:
+                preprocessRgb(ws);
+                break;
+            case COLOR_HSV:
+                preprocessHsv(ws);
+                break;
+            case PRECONFIG_HSV:
+                preprocessHsvObjects(ws);
+                break;
+            case MULTI_COLOR_HSV:
+                preprocessMultiColor(ws);
+                break;
+            case FACE_DETECTION:
+                preprocessFaces(ws);
+                break;
+            case QR_DETECTION:
+                preprocessQr(ws);
+                break;
+        }
+    }
 
-        Result qrCodeResult;
-        try {
-            qrCodeResult = new MultiFormatReader().decode(bitmap, hintMap);
-            System.out.println("Result object created");
-        } catch (NotFoundException ex) {
-            return null;
+    /**
+     * Second stage: locate the object, update the tracking state and annotate
+     * the frame.
+     *
+     * @param ws buffers filled by {@link #preprocess(Workspace)}
+     */
+    void detect(Workspace ws) {
+        long t = timings.start();
+        ws.position = null;
+        if (ws.active != null) {
+            detectEnsemble(ws);
+        } else {
+            detectWith(ws);
         }
-        ResultPoint[] points = qrCodeResult.getResultPoints();
-        System.out.println("Points received");
-        if (points.length != 3) {
-            return null;
+        timings.record(Stage.DETECTION, t, ws.sequence);
+        framesProcessed.increment();
+        processingRate.mark();
+        detectionSequence = ws.sequence;
+        if (ws.position != null) {
+            framesDetected.increment();
+            track(ws.position.x, ws.position.y);
+            FlightRecorderEvents.detection(ws.sequence, ws.type.name(), true, ws.position.x, ws.position.y);
         } else {
-            Point p = new Point();
-            System.out.println("P0: " + points[0]);
-            System.out.println("P1: " + points[1]);
-            System.out.println("P2: " + points[2]);
-            p.x = (points[0].getX() + points[1].getX() + points[2].getX()) / 3;
-            p.y = (points[0].getY() + points[1].getY() + points[2].getY()) / 3;
-            return p;
+            objectDetected = false;
+            FlightRecorderEvents.detection(ws.sequence, ws.type.name(), false, 0, 0);
         }
+        detectionUpdated(ws.sequence, ws.position, ws.frame.cols(), ws.frame.rows());
     }
 
-    private List<BufferedImage> processFaces(Mat frame) {
-        MatOfRect faces = new MatOfRect();
-        Mat grayFrame = new Mat();
-        List<BufferedImage> results = new ArrayList<>();
-        BufferedImage grayImage, equilizedImage;
+    private void detectWith(Workspace ws) {
+        switch (ws.type) {
+            case COLOR_RGB:
+            case COLOR_HSV:
+            case PRECONFIG_HSV:
+                detectColor(ws);
+                break;
+            case MULTI_COLOR_HSV:
+                detectMultiColor(ws);
+                break;
+            case FACE_DETECTION:
+                detectFaces(ws);
+                break;
+            case QR_DETECTION:
+                detectQr(ws);
+                break;
+        }
+    }
 
-        // convert the frame in gray scale
-        Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
-        grayImage = Util.Mat2Image(grayFrame);
-        // equalize the frame histogram to improve the result
-        Imgproc.equalizeHist(grayFrame, grayFrame);
-        equilizedImage = Util.Mat2Image(grayFrame);
+    /**
+     * Ensemble mode: the common preprocessing (blur for the color detectors,
+     * gray scale for the others) is done once on the shared frame, then every
+     * detector preprocesses its own buffers in parallel.
+     */
+    private void preprocessEnsemble(Workspace ws, List<ProcessType> types) {
+        ws.active = types;
+        Workspace[] members = members(ws);
+        boolean color = false;
+        boolean gray = false;
+        for (ProcessType t : types) {
+            if (isColor(t)) {
+                color = true;
+            } else {
+                gray = true;
+            }
+        }
+        long t = timings.start();
+        if (color) {
+            // Remove some noise
+            Imgproc.blur(ws.frame, ws.blurred, Workspace.BLUR_SIZE);
+            t = timings.record(Stage.BLUR, t, ws.sequence);
+        }
+        if (gray) {
+            // convert the frame in gray scale
+            Imgproc.cvtColor(ws.frame, ws.gray, Imgproc.COLOR_BGR2GRAY);
+            timings.record(Stage.COLOR, t, ws.sequence);
+        }
+        // A click calibrates a single detector, the first one that takes it
+        boolean click = mouseClicked;
+        for (Workspace member : members) {
+            member.clearAnnotations();
+            member.calibrating = click && (member.type == ProcessType.COLOR_RGB || member.type == ProcessType.COLOR_HSV);
+            click &= !member.calibrating;
+        }
+        inParallel(members, this::preprocessWith);
+    }
 
-        // compute minimum face size (20% of the frame height, in our case)
-        if (this.absoluteFaceSize == 0) {
-            int height = grayFrame.rows();
-            if (Math.round(height * 0.2f) > 0) {
-                this.absoluteFaceSize = Math.round(height * 0.2f);
+    /**
+     * Ensemble mode: every detector runs in parallel, then the first one in
+     * priority order that found something gives the tracked object. The
+     * members only read the shared frame; their annotations are drawn on it
+     * once all of them are done.
+     */
+    private void detectEnsemble(Workspace ws) {
+        Workspace[] members = members(ws);
+        inParallel(members, (Workspace member) -> {
+            member.position = null;
+            detectWith(member);
+        });
+        Map<ProcessType, Point> detections = new EnumMap<>(ProcessType.class);
+        for (Workspace member : members) {
+            member.flushAnnotations();
+            if (member.position != null) {
+                detections.put(member.type, member.position);
+                if (ws.position == null) {
+                    ws.position = member.position;
+                }
             }
         }
+        ensembleDetections = Collections.unmodifiableMap(detections);
+    }
 
-        // detect faces
-        this.faceCascade.detectMultiScale(grayFrame, faces, 1.1, 2, Objdetect.CASCADE_SCALE_IMAGE, new Size(
-                this.absoluteFaceSize, this.absoluteFaceSize), new Size());
+    private static Workspace[] members(Workspace ws) {
+        Workspace[] members = new Workspace[ws.active.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = ws.member(ws.active.get(i));
+            members[i].sequence = ws.sequence;
+        }
+        return members;
+    }
 
-        // each rectangle in faces is a face: draw them!
-        Rect[] facesArray = faces.toArray();
-        for (Rect face : facesArray) {
-            Imgproc.rectangle(frame, face.tl(), face.br(), new Scalar(0, 255, 0, 255), 3);
+    private static Map<ProcessType, SearchWindow> colorWindows() {
+        Map<ProcessType, SearchWindow> windows = new EnumMap<>(ProcessType.class);
+        for (ProcessType type : ProcessType.values()) {
+            if (isColor(type)) {
+                windows.put(type, new SearchWindow());
+            }
         }
-        // Get the first face and use it as a tracking object
-        objectDetected = false;
-        if (facesArray.length > 0) {
-            objectDetected = true;
-            trackedObject.x = facesArray[0].x + facesArray[0].width / 2;
-            trackedObject.y = facesArray[0].y + facesArray[0].height / 2;
-            Util.DrawCrosshairs(frame, (int) getTrackedObject().x, (int) getTrackedObject().y);
-        }
-        results.add(Util.Mat2Image(frame));
-        results.add(grayImage);
-        results.add(equilizedImage);
-        return results;
+        return windows;
     }
 
-    private List<BufferedImage> processQr(Mat frame) {
-        Mat grayFrame = new Mat();
-        Mat blurredFrame = new Mat();
-        Mat binarizedFrame = new Mat();
-        List<BufferedImage> results = new ArrayList<>();
-        BufferedImage grayImage, blurredImage, binarizedImage;
+    /**
+     * @return the search window followed by a color pipeline
+     */
+    private SearchWindow searchWindow(Workspace ws) {
+        return ws.sharedInput ? colorWindows.get(ws.type) : searchWindow;
+    }
 
-        // convert the frame in gray scale
-        Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
-        // equalize the frame histogram to improve the result
-        Imgproc.equalizeHist(grayFrame, grayFrame);
-        grayImage = Util.Mat2Image(grayFrame);
-        // Gaussian Blur
-        Imgproc.GaussianBlur(grayFrame, blurredFrame, new Size(5, 5), 0);
-        blurredImage = Util.Mat2Image(blurredFrame);
-        // Threshold
-        Imgproc.threshold(blurredFrame, binarizedFrame, 90, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
-        binarizedImage = Util.Mat2Image(binarizedFrame);
+    private void resetWindows() {
+        searchWindow.reset();
+        faceWindow.reset();
+        qrWindow.reset();
+        for (SearchWindow window : colorWindows.values()) {
+            window.reset();
+        }
+    }
 
-        Point qrCenter = readQRCode(binarizedFrame);
+    private static boolean isColor(ProcessType type) {
+        switch (type) {
+            case COLOR_RGB:
+            case COLOR_HSV:
+            case PRECONFIG_HSV:
+            case MULTI_COLOR_HSV:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        // If we have a point (center), use it as a tracking object
-        objectDetected = false;
-        if (qrCenter != null) {
-            objectDetected = true;
-            trackedObject = qrCenter;
-            Util.DrawCrosshairs(frame, (int) getTrackedObject().x, (int) getTrackedObject().y);
-        }
-        results.add(Util.Mat2Image(frame));
-        results.add(grayImage);
-        results.add(blurredImage);
-        results.add(binarizedImage);
+    /**
+     * Last stage: convert the annotated frame and the intermediate steps to
+     * images for the UI. Only outputs with a subscriber are converted, the
+     * rest are left as null; nothing is produced in tracking only mode.
+     *
+     * @param ws buffers filled by {@link #detect(Workspace)}
+     * @return annotated frame followed by the intermediate steps, or an empty
+     * list if nobody is watching
+     */
+    List<BufferedImage> render(Workspace ws) {
+        if (!wantsImages()) {
+            return Collections.emptyList();
+        }
+        if (ws.active != null) {
+            // Shared annotated frame, intermediate steps of the first detector
+            return render(ws.member(ws.active.get(0)));
+        }
+        List<BufferedImage> results = new ArrayList<>(4);
+        results.add(preview(ws, ws.frame, PreviewOutput.FRAME));
+        switch (ws.type) {
+            case COLOR_RGB:
+            case COLOR_HSV:
+            case PRECONFIG_HSV:
+            case MULTI_COLOR_HSV:
+                results.add(preview(ws, ws.converted, PreviewOutput.CONVERTED));
+                results.add(preview(ws, ws.eroded, PreviewOutput.FIRST_STEP));
+                results.add(preview(ws, ws.dilated, PreviewOutput.SECOND_STEP));
+                break;
+            case FACE_DETECTION:
+                results.add(preview(ws, ws.gray, PreviewOutput.CONVERTED));
+                results.add(preview(ws, ws.equalized, PreviewOutput.FIRST_STEP));
+                break;
+            case QR_DETECTION:
+                results.add(preview(ws, ws.gray, PreviewOutput.CONVERTED));
+                results.add(preview(ws, ws.equalized, PreviewOutput.FIRST_STEP));
+                results.add(preview(ws, ws.binarized, PreviewOutput.SECOND_STEP));
+                break;
+        }
         return results;
     }
 
-    private List<BufferedImage> processHsv(Mat frame) {
-        // Init
-        Mat blurredImage = new Mat();
-        Mat hsvImage = new Mat();
-        Mat mask = new Mat();
-        Mat morphOutput = new Mat();
-        List<BufferedImage> results = new ArrayList<>();
-        BufferedImage eroredImage, dilatedImage;
-
-        // Remove some noise
-        Imgproc.blur(frame, blurredImage, new Size(7, 7));
-
-        // Convert the frame to HSV
-        Imgproc.cvtColor(blurredImage, hsvImage, Imgproc.COLOR_BGR2HSV);
+    private BufferedImage preview(Workspace ws, Mat mat, PreviewOutput output) {
+        if (!wants(output)) {
+            return null;
+        }
+        long t = timings.start();
+        BufferedImage image = ws.toImage(mat, output.ordinal());
+        timings.record(Stage.PREVIEW, t, ws.sequence);
+        return image;
+    }
 
-        // Get color of current coordinates
-        if (mouseClicked) {
-            try {
-                int hmin = 180, smin = 255, vmin = 255;
-                int hmax = 0, smax = 0, vmax = 0;
-
-                for (int i = mx - 50; i < mx + 50; i++) {
-                    for (int j = my - 50; j < my + 50; j++) {
-                        double[] hsv = hsvImage.get(j, i);
-                        hmin = (int) (hsv[0] < hmin ? hsv[0] : hmin);
-                        hmax = (int) (hsv[0] > hmax ? hsv[0] : hmax);
-                        smin = (int) (hsv[1] < smin ? hsv[1] : smin);
-                        smax = (int) (hsv[1] > smax ? hsv[1] : smax);
-                        vmin = (int) (hsv[2] < vmin ? hsv[2] : vmin);
-                        vmax = (int) (hsv[2] > vmax ? hsv[2] : vmax);
-                    }
-                }
-                for (ChannelValuesListener listener : listeners) {
-                    listener.channelsUpdated(hmin, smin, vmin, hmax, smax, vmax);
-                }
-                chMin1 = hmin;
-                chMin2 = smin;
-                chMin3 = vmin;
-                chMax1 = hmax;
-                chMax2 = smax;
-                chMax3 = vmax;
-                Imgproc.rectangle(frame, new Point(mx - 50, my - 50), new Point(mx + 50, my + 50), new Scalar(255, 0, 255), 4);
-            } catch (Exception ex) {
+    /**
+     * @return true if the given output has to be produced
+     */
+    private boolean wants(PreviewOutput output) {
+        return !trackingOnly && previewSubscribers.get(output.ordinal()) > 0;
+    }
 
-            } finally {
-                mouseClicked = false;
+    private boolean wantsImages() {
+        if (trackingOnly) {
+            return false;
+        }
+        for (int i = 0; i < previewSubscribers.length(); i++) {
+            if (previewSubscribers.get(i) > 0) {
+                return true;
             }
         }
-
-        // Get thresholding values from the UI
-        // Remember: H ranges 0-180, S and V range 0-255
-        Scalar minValues = new Scalar(chMin1, chMin2, chMin3);
-        Scalar maxValues = new Scalar(chMax1, chMax2, chMax3);
-
-        // Threshold HSV image to select object
-        Core.inRange(hsvImage, minValues, maxValues, mask);
-
-        // Morphological operators
-        // Dilate with large element, erode with small ones
-        Mat dilateElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(24, 24));
-        Mat erodeElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(12, 12));
-
-        Imgproc.erode(mask, morphOutput, erodeElement);
-        eroredImage = Util.Mat2Image(morphOutput);
-        Imgproc.dilate(mask, morphOutput, dilateElement);
-        dilatedImage = Util.Mat2Image(morphOutput);
-
-        // Find the object(s) contours and show them
-        frame = this.findAndDrawObjects(morphOutput, frame);
-
-        // Calculate centers
-        Mat temp = new Mat();
-        morphOutput.copyTo(temp);
-        List<MatOfPoint> contours = new ArrayList<>();
-        Imgproc.findContours(temp, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-        objectDetected = false;
-        for (int i = 0; i < contours.size(); i++) {
-            Rect objectBoundingRectangle = Imgproc.boundingRect(contours.get(i));
-            int x = objectBoundingRectangle.x + objectBoundingRectangle.width / 2;
-            int y = objectBoundingRectangle.y + objectBoundingRectangle.height / 2;
-            if (i == 0) {
-                objectDetected = true;
-                trackedObject.x = x;
-                trackedObject.y = y;
-                Util.DrawCrosshairs(frame, x, y);
-            }
-        }
-        results.add(Util.Mat2Image(frame));
-        results.add(Util.Mat2Image(hsvImage));
-        results.add(eroredImage);
-        results.add(dilatedImage);
-        return results;
+        return false;
     }
 
-    private List<BufferedImage> processRgb(Mat frame) {
-        // Init
-        Mat blurredImage = new Mat();
-        Mat rgbImage = new Mat();
-        Mat mask = new Mat();
-        Mat morphOutput = new Mat();
-        List<BufferedImage> results = new ArrayList<>();
-        BufferedImage eroredImage, dilatedImage;
-
-        // Remove some noise
-        Imgproc.blur(frame, blurredImage, new Size(7, 7));
+    private void preprocessFaces(Workspace ws) {
+        long t = timings.start();
+        // convert the frame in gray scale (done already if shared)
+        if (!ws.sharedInput) {
+            Imgproc.cvtColor(ws.frame, ws.gray, Imgproc.COLOR_BGR2GRAY);
+            t = timings.record(Stage.COLOR, t, ws.sequence);
+        }
+        if (asyncFaceDetection && !wants(PreviewOutput.FIRST_STEP)) {
+            // The tracker works on the gray frame, the cascade prepares its own copy
+            return;
+        }
+        // go down the pyramid to the configured level
+        ws.faceScale = 1 << faceDetectionLevel;
+        Mat scaled = ws.gray;
+        if (ws.faceScale > 1) {
+            Imgproc.resize(ws.gray, ws.scaled, new Size(ws.gray.cols() / ws.faceScale, ws.gray.rows() / ws.faceScale), 0, 0, Imgproc.INTER_AREA);
+            scaled = ws.scaled;
+        }
+        // equalize the frame histogram to improve the result
+        Imgproc.equalizeHist(scaled, ws.equalized);
+        timings.record(Stage.COLOR, t, ws.sequence);
+    }
 
-        // Convert the frame to BGRA
-        Imgproc.cvtColor(blurredImage, rgbImage, Imgproc.COLOR_BGR2BGRA);
+    /**
+     * Face detection with the cascade on a background thread, every
+     * {@link #faceDetectionInterval} frames or as soon as the tracker is
+     * unsure, and the template tracker on every frame in between.
+     */
+    private void detectFacesAsync(Workspace ws) {
+        AsyncDetection<FaceDetection> detector = faceDetector();
+
+        // Seed the tracker with the last cascade result, if it just arrived
+        FaceDetection detection = detector.poll();
+        if (detection != null) {
+            if (detection.faces.length > 0) {
+                faceTracker.init(detection.gray, detection.faces[0]);
+            } else {
+                faceTracker.reset();
+            }
+            detection.gray.release();
+        }
+        Rect face = faceTracker.update(ws.gray);
+
+        // Run the cascade again periodically, or right away if the face is lost or unsure
+        framesSinceFaceDetection++;
+        if (!detector.isBusy() && (framesSinceFaceDetection >= faceDetectionInterval
+                || face == null || faceTracker.getScore() < FACE_REDETECT_SCORE)) {
+            Mat gray = ws.gray.clone();
+            int level = faceDetectionLevel;
+            if (detector.submit(() -> detectFaces(gray, level))) {
+                framesSinceFaceDetection = 0;
+            } else {
+                gray.release();
+            }
+        }
 
-        // Get color of current coordinates
-        if (mouseClicked) {
-            try {
-                int rmin = 255, gmin = 255, bmin = 255;
-                int rmax = 0, gmax = 0, bmax = 0;
-
-                for (int i = mx - 50; i < mx + 50; i++) {
-                    for (int j = my - 50; j < my + 50; j++) {
-                        double[] rgb = rgbImage.get(j, i);
-                        rmin = (int) (rgb[0] < rmin ? rgb[0] : rmin);
-                        rmax = (int) (rgb[0] > rmax ? rgb[0] : rmax);
-                        gmin = (int) (rgb[1] < gmin ? rgb[1] : gmin);
-                        gmax = (int) (rgb[1] > gmax ? rgb[1] : gmax);
-                        bmin = (int) (rgb[2] < bmin ? rgb[2] : bmin);
-                        bmax = (int) (rgb[2] > bmax ? rgb[2] : bmax);
-                    }
-                }
-                for (ChannelValuesListener listener : listeners) {
-                    listener.channelsUpdated(rmin, gmin, bmin, rmax, gmax, bmax);
-                }
-                chMin1 = rmin;
-                chMin2 = gmin;
-                chMin3 = bmin;
-                chMax1 = rmax;
-                chMax2 = gmax;
-                chMax3 = bmax;
-                Imgproc.rectangle(frame, new Point(mx - 50, my - 50), new Point(mx + 50, my + 50), new Scalar(255, 0, 255), 4);
-            } catch (Exception ex) {
+        if (face != null) {
+            ws.found(face.x + face.width / 2, face.y + face.height / 2);
+            if (detection != null) {
+                faceDetectionFrames++;
+            } else {
+                faceTrackingFrames++;
+            }
+            if (wants(PreviewOutput.FRAME)) {
+                Point center = ws.position;
+                ws.annotate((Mat canvas) -> {
+                    Imgproc.rectangle(canvas, face.tl(), face.br(), FACE_COLOR, 3);
+                    Util.DrawCrosshairs(canvas, (int) center.x, (int) center.y);
+                });
+            }
+        } else {
+            ws.position = null;
+        }
+    }
 
-            } finally {
-                mouseClicked = false;
+    /**
+     * Full frame cascade detection, run on the background thread.
+     *
+     * @param gray copy of the frame in gray scale, handed over with the result
+     * @param level pyramid level to search at
+     */
+    private FaceDetection detectFaces(Mat gray, int level) {
+        int scale = 1 << level;
+        Mat equalized = new Mat();
+        MatOfRect faces = new MatOfRect();
+        try {
+            if (scale > 1) {
+                Imgproc.resize(gray, equalized, new Size(gray.cols() / scale, gray.rows() / scale), 0, 0, Imgproc.INTER_AREA);
+                Imgproc.equalizeHist(equalized, equalized);
+            } else {
+                Imgproc.equalizeHist(gray, equalized);
             }
+            double minSize = Math.round(gray.rows() * 0.2f) / scale;
+            synchronized (faceCascade) {
+                faceCascade.detectMultiScale(equalized, faces, 1.1, 2, Objdetect.CASCADE_SCALE_IMAGE,
+                        new Size(minSize, minSize), Workspace.NO_SIZE);
+            }
+            Rect[] found = faces.toArray();
+            for (Rect face : found) {
+                face.x *= scale;
+                face.y *= scale;
+                face.width *= scale;
+                face.height *= scale;
+            }
+            return new FaceDetection(gray, found);
+        } finally {
+            equalized.release();
+            faces.release();
         }
+    }
 
-        // Get thresholding values from the UI
-        // Remember: R, G & B values 0-255
-        Scalar minValues = new Scalar(chMin1, chMin2, chMin3);
-        Scalar maxValues = new Scalar(chMax1, chMax2, chMax3);
-
-        // Threshold RGB image to select object
-        Core.inRange(rgbImage, minValues, maxValues, mask);
-
-        // Morphological operators
-        // Dilate with large element, erode with small ones
-        Mat dilateElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(24, 24));
-        Mat erodeElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(12, 12));
-
-        Imgproc.erode(mask, morphOutput, erodeElement);
-        eroredImage = Util.Mat2Image(morphOutput);
-        Imgproc.dilate(mask, morphOutput, dilateElement);
-        dilatedImage = Util.Mat2Image(morphOutput);
-
-        // Find the object(s) contours and show them
-        frame = this.findAndDrawObjects(morphOutput, frame);
-
-        // Calculate centers
-        Mat temp = new Mat();
-        morphOutput.copyTo(temp);
-        List<MatOfPoint> contours = new ArrayList<>();
-        Imgproc.findContours(temp, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-        objectDetected = false;
-        for (int i = 0; i < contours.size(); i++) {
-            Rect objectBoundingRectangle = Imgproc.boundingRect(contours.get(i));
-            int x = objectBoundingRectangle.x + objectBoundingRectangle.width / 2;
-            int y = objectBoundingRectangle.y + objectBoundingRectangle.height / 2;
-            if (i == 0) {
-                objectDetected = true;
-                trackedObject.x = x;
-                trackedObject.y = y;
-                Util.DrawCrosshairs(frame, x, y);
-            }
-        }
-        results.add(Util.Mat2Image(frame));
-        results.add(Util.Mat2Image(rgbImage));
-        results.add(eroredImage);
-        results.add(dilatedImage);
-        return results;
+    private synchronized AsyncDetection<FaceDetection> faceDetector() {
+        if (faceDetector == null) {
+            faceDetector = new AsyncDetection<>("face-detect");
+        }
+        return faceDetector;
     }
 
-    private List<BufferedImage> processHsvObjects(Mat frame) {
-        // Init
-        Mat blurredImage = new Mat();
-        Mat hsvImage = new Mat();
-        Mat mask = new Mat();
-        Mat morphOutput = new Mat();
-        List<BufferedImage> results = new ArrayList<>();
-        BufferedImage eroredImage, dilatedImage;
+    private void detectFaces(Workspace ws) {
+        if (asyncFaceDetection) {
+            detectFacesAsync(ws);
+            return;
+        }
+        Mat frame = ws.frame;
+        int scale = ws.faceScale;
 
-        // Remove some noise
-        Imgproc.blur(frame, blurredImage, new Size(7, 7));
+        // compute minimum face size (20% of the frame height, in our case)
+        if (this.absoluteFaceSize == 0) {
+            int height = frame.rows();
+            if (Math.round(height * 0.2f) > 0) {
+                this.absoluteFaceSize = Math.round(height * 0.2f);
+            }
+        }
 
-        // Convert the frame to HSV
-        Imgproc.cvtColor(blurredImage, hsvImage, Imgproc.COLOR_BGR2HSV);
-
-        // Threshold HSV image to select object
-        Core.inRange(hsvImage, objectColor.getHsvMin(), objectColor.getHsvMax(), mask);
-
-        // Morphological operators
-        // Dilate with large element, erode with small ones
-        Mat dilateElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(24, 24));
-        Mat erodeElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(12, 12));
-
-        Imgproc.erode(mask, morphOutput, erodeElement);
-        eroredImage = Util.Mat2Image(morphOutput);
-        Imgproc.dilate(mask, morphOutput, dilateElement);
-        dilatedImage = Util.Mat2Image(morphOutput);
-
-        // Find the object(s) contours and show them
-        frame = this.findAndDrawObjects(morphOutput, frame);
-
-        // Calculate centers
-        Mat temp = new Mat();
-        morphOutput.copyTo(temp);
-        List<MatOfPoint> contours = new ArrayList<>();
-        Imgproc.findContours(temp, contours, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-        objectDetected = false;
-        for (int i = 0; i < contours.size(); i++) {
-            Rect objectBoundingRectangle = Imgproc.boundingRect(contours.get(i));
-            int x = objectBoundingRectangle.x + objectBoundingRectangle.width / 2;
-            int y = objectBoundingRectangle.y + objectBoundingRectangle.height / 2;
-            if (i == 0) {
-                objectDetected = true;
-                trackedObject.x = x;
-                trackedObject.y = y;
-                Util.DrawCrosshairs(frame, x, y);
-            }
-        }
-        results.add(Util.Mat2Image(frame));
-        results.add(Util.Mat2Image(hsvImage));
-        results.add(eroredImage);
-        results.add(dilatedImage);
-        return results;
-    }
+        // Search around the last face if there was one recently, with sizes close to it
+        Rect window = roiTracking ? faceWindow.next(frame.cols(), frame.rows()) : null;
+        Mat search = ws.equalized;
+        Rect last = faceWindow.getBox();
+        int offsetX = 0, offsetY = 0;
+        if (window != null && last != null) {
+            Rect scaledWindow = new Rect(window.x / scale, window.y / scale,
+                    Math.min(window.width / scale, ws.equalized.cols() - window.x / scale),
+                    Math.min(window.height / scale, ws.equalized.rows() - window.y / scale));
+            search = ws.equalized.submat(scaledWindow);
+            offsetX = scaledWindow.x;
+            offsetY = scaledWindow.y;
+            double size = Math.max(last.width, last.height) / (double) scale;
+            ws.minFaceSize.width = ws.minFaceSize.height = Math.max(1, size * FACE_MIN_RATIO);
+            ws.maxFaceSize.width = ws.maxFaceSize.height = size * FACE_MAX_RATIO;
+        } else {
+            window = null;
+            ws.minFaceSize.width = ws.minFaceSize.height = this.absoluteFaceSize / scale;
+            ws.maxFaceSize.width = ws.maxFaceSize.height = 0;
+        }
 
-    public List<BufferedImage> ProcessFrame(BufferedImage currentFrame) {
-        // Init everything
-        List<BufferedImage> results = null;
-        Mat frame;
+        // detect faces
+        synchronized (faceCascade) {
+            this.faceCascade.detectMultiScale(search, ws.faces, 1.1, 2, Objdetect.CASCADE_SCALE_IMAGE, ws.minFaceSize, ws.maxFaceSize);
+        }
+        if (search != ws.equalized) {
+            search.release();
+        }
 
-        // Check if the capture is open
-        if (currentFrame != null) {
-            try {
-                // Read the current frame
-                frame = Util.Image2Mat(currentFrame);
-                // Flip image for easy object manipulation
-                //Core.flip(frame, frame, 1);
-                switch (type) {
-                    case COLOR_RGB:
-                        results = processRgb(frame);
-                        break;
-                    case COLOR_HSV:
-                        results = processHsv(frame);
-                        break;
-                    case PRECONFIG_HSV:
-                        results = processHsvObjects(frame);
-                        break;
-                    case FACE_DETECTION:
-                        results = processFaces(frame);
-                        break;
-                    case QR_DETECTION:
-                        results = processQr(frame);
-                        break;
+        // each rectangle in faces is a face, back in frame coordinates: draw them!
+        Rect[] facesArray = ws.faces.toArray();
+        for (Rect face : facesArray) {
+            face.x = (face.x + offsetX) * scale;
+            face.y = (face.y + offsetY) * scale;
+            face.width *= scale;
+            face.height *= scale;
+        }
+        boolean annotate = wants(PreviewOutput.FRAME);
+        if (annotate) {
+            Rect searched = window;
+            ws.annotate((Mat canvas) -> {
+                for (Rect face : facesArray) {
+                    Imgproc.rectangle(canvas, face.tl(), face.br(), FACE_COLOR, 3);
                 }
-                // If the drone is in tracking mode, then draw boundaries
-                //if (dm.isDroneTracking() && frame != null) {
-                //    Imgproc.rectangle(frame, new Point(0, 0), new Point(Config.MAX_LEFT, 720), new Scalar(255, 0, 255), 5);
-                //    Imgproc.rectangle(frame, new Point(Config.MAX_RIGHT, 0), new Point(1280, 720), new Scalar(255, 0, 255), 5);
-                //}
-                // convert the Mat object (OpenCV) to Image (Java AWT)
-                //imageToShow = Util.Mat2Image(frame);
-            } catch (Exception e) {
-                // log the error
-                System.err.println("Exception during the frame elaboration: " + e);
+                if (searched != null) {
+                    Imgproc.rectangle(canvas, searched.tl(), searched.br(), WINDOW_COLOR, 1);
+                }
+            });
+        }
+        // Get the first face and use it as a tracking object
+        if (facesArray.length > 0) {
+            ws.found(facesArray[0].x + facesArray[0].width / 2, facesArray[0].y + facesArray[0].height / 2);
+            faceWindow.hit(facesArray[0], window != null);
+            if (annotate) {
+                Point center = ws.position;
+                ws.annotate((Mat canvas) -> Util.DrawCrosshairs(canvas, (int) center.x, (int) center.y));
             }
+        } else {
+            ws.position = null;
+            faceWindow.miss(window != null);
         }
-        return results;
     }
 
-    public void MouseClicked(int x, int y) {
-        mouseClicked = true;
-        mx = x;
-        my = y;
+    private void preprocessQr(Workspace ws) {
+        long t = timings.start();
+        // convert the frame in gray scale (done already if shared)
+        if (!ws.sharedInput) {
+            Imgproc.cvtColor(ws.frame, ws.gray, Imgproc.COLOR_BGR2GRAY);
+            t = timings.record(Stage.COLOR, t, ws.sequence);
+        }
+        if (asyncQrDetection) {
+            // The flow works on the gray frame, the decode prepares its own copy
+            return;
+        }
+        // equalize the frame histogram to improve the result (the gray frame may be shared, so not in place)
+        Imgproc.equalizeHist(ws.gray, ws.equalized);
+        // Gaussian Blur
+        Imgproc.GaussianBlur(ws.equalized, ws.equalized, Workspace.QR_BLUR_SIZE, 0);
+        // Threshold
+        Imgproc.threshold(ws.equalized, ws.binarized, 90, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
+        timings.record(Stage.THRESHOLD, t, ws.sequence);
     }
 
-    public void setChannelValues(int chMin1, int chMin2, int chMin3, int chMax1, int chMax2, int chMax3) {
-        this.chMin1 = chMin1;
-        this.chMin2 = chMin2;
-        this.chMin3 = chMin3;
-        this.chMax1 = chMax1;
-        this.chMax2 = chMax2;
-        this.chMax3 = chMax3;
+    /**
+     * QR detection with the full decode on a background thread, every
+     * {@link #qrDecodeInterval} frames or as soon as the code is lost, and
+     * the three finder patterns followed with optical flow in between.
+     */
+    private void detectQrAsync(Workspace ws) {
+        AsyncDetection<QrDetection> detector = qrDetector();
+
+        // Restart the flow from the last decode, if it just arrived
+        QrDetection detection = detector.poll();
+        if (detection != null) {
+            if (detection.points != null) {
+                qrPayload = detection.text;
+                detection.gray.copyTo(qrPrevious);
+                qrPoints.fromArray(detection.points);
+                qrLocked = true;
+            } else {
+                qrLocked = false;
+            }
+            detection.gray.release();
+        }
+        Point[] points = qrLocked ? followQr(ws.gray) : null;
+        qrLocked = points != null;
+
+        // Decode again periodically, or right away if the code is lost
+        framesSinceQrDecode++;
+        if (!detector.isBusy() && (framesSinceQrDecode >= qrDecodeInterval || points == null)) {
+            Mat gray = ws.gray.clone();
+            boolean tryHarder = qrTryHarder;
+            if (detector.submit(() -> decodeQr(gray, tryHarder))) {
+                framesSinceQrDecode = 0;
+            } else {
+                gray.release();
+            }
+        }
+
+        if (points != null) {
+            ws.found((points[0].x + points[1].x + points[2].x) / 3, (points[0].y + points[1].y + points[2].y) / 3);
+            if (detection != null) {
+                qrDecodeFrames++;
+            } else {
+                qrTrackingFrames++;
+            }
+            if (wants(PreviewOutput.FRAME)) {
+                Point center = ws.position;
+                ws.annotate((Mat canvas) -> {
+                    for (Point point : points) {
+                        Imgproc.circle(canvas, point, 8, WINDOW_COLOR, 2);
+                    }
+                    Util.DrawCrosshairs(canvas, (int) center.x, (int) center.y);
+                });
+            }
+        } else {
+            ws.position = null;
+        }
     }
 
     /**
-     * @return the type
+     * Moves the finder patterns from the previous frame to this one.
+     *
+     * @return the new positions, or null if any of them was lost
      */
-    public ProcessType getType() {
-        return type;
+    private Point[] followQr(Mat gray) {
+        Video.calcOpticalFlowPyrLK(qrPrevious, gray, qrPoints, qrNext, qrStatus, qrError, QR_FLOW_WINDOW, QR_FLOW_LEVELS);
+        gray.copyTo(qrPrevious);
+        for (byte found : qrStatus.toArray()) {
+            if (found == 0) {
+                return null;
+            }
+        }
+        qrNext.copyTo(qrPoints);
+        Point[] points = qrNext.toArray();
+        return points.length == 3 ? points : null;
     }
 
     /**
-     * @param type the type to set
+     * Full QR binarization and decode, run on the background thread.
+     *
+     * @param gray copy of the frame in gray scale, handed over with the result
+     * @param tryHarder whether to spend more time looking for the code
      */
-    public void setType(ProcessType type) {
-        this.type = type;
+    private QrDetection decodeQr(Mat gray, boolean tryHarder) {
+        Mat equalized = new Mat();
+        Mat binarized = new Mat();
+        try {
+            Imgproc.equalizeHist(gray, equalized);
+            Imgproc.GaussianBlur(equalized, equalized, Workspace.QR_BLUR_SIZE, 0);
+            Imgproc.threshold(equalized, binarized, 90, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
+            // Only used from the background thread
+            if (backgroundQrDecoder == null || backgroundQrDecoder.isTryHarder() != tryHarder) {
+                backgroundQrDecoder = new QrDecoder(tryHarder);
+            }
+            ResultPoint[] found = backgroundQrDecoder.decode(binarized, null, 1.0d);
+            if (found == null || found.length != 3) {
+                return new QrDetection(gray, null, null);
+            }
+            Point[] points = new Point[3];
+            for (int i = 0; i < 3; i++) {
+                points[i] = new Point(found[i].getX(), found[i].getY());
+            }
+            return new QrDetection(gray, points, backgroundQrDecoder.getText());
+        } finally {
+            equalized.release();
+            binarized.release();
+        }
+    }
+
+    private synchronized AsyncDetection<QrDetection> qrDetector() {
+        if (qrDetector == null) {
+            qrDetector = new AsyncDetection<>("qr-decode");
+        }
+        return qrDetector;
+    }
+
+    private void detectQr(Workspace ws) {
+        if (asyncQrDetection) {
+            detectQrAsync(ws);
+            return;
+        }
+        Mat binarized = ws.binarized;
+        int cols = binarized.cols();
+        int rows = binarized.rows();
+        QrDecoder decoder = qrDecoder();
+        ResultPoint[] points = null;
+
+        // Cheap attempts first: around the last code, then at half resolution
+        Rect window = roiTracking ? qrWindow.next(cols, rows) : null;
+        if (window != null) {
+            points = decoder.decode(binarized, window, 1.0d);
+        }
+        if (points == null && qrDownscale) {
+            Imgproc.resize(binarized, ws.scaled, new Size(cols / 2, rows / 2), 0, 0, Imgproc.INTER_AREA);
+            points = decoder.decode(ws.scaled, null, 2.0d);
+        }
+        if (points == null) {
+            points = decoder.decode(binarized, null, 1.0d);
+        }
+        Point qrCenter = center(points);
+
+        // If we have a point (center), use it as a tracking object
+        if (qrCenter != null) {
+            qrPayload = decoder.getText();
+            ws.found(qrCenter.x, qrCenter.y);
+            if (roiTracking) {
+                qrWindow.hit(bounds(points), window != null);
+            }
+            if (wants(PreviewOutput.FRAME)) {
+                ws.annotate((Mat canvas) -> Util.DrawCrosshairs(canvas, (int) qrCenter.x, (int) qrCenter.y));
+            }
+        } else {
+            ws.position = null;
+            if (roiTracking) {
+                qrWindow.miss(window != null);
+            }
+        }
+    }
+
+    private void preprocessHsv(Workspace ws) {
+        // Convert the frame to HSV
+        // Remember: H ranges 0-180, S and V range 0-255
+        preprocessColor(ws, Imgproc.COLOR_BGR2HSV, CvType.CV_8UC3, 180);
+    }
+
+    private void preprocessRgb(Workspace ws) {
+        // Convert the frame to BGRA
+        // Remember: R, G & B values 0-255
+        preprocessColor(ws, Imgproc.COLOR_BGR2BGRA, CvType.CV_8UC4, 255);
+    }
+
+    private void preprocessHsvObjects(Workspace ws) {
+        // Convert the frame to HSV, thresholds come from the selected object
+        preprocessColor(ws, Imgproc.COLOR_BGR2HSV, CvType.CV_8UC3, 0);
+    }
+
+    /**
+     * Common first stage of the color pipelines: blur, color conversion,
+     * calibration, threshold and morphology. With tiled processing enabled the
+     * frame is split in horizontal strips processed on the fork/join pool;
+     * strips are views of the full buffers, so blur and morphology read their
+     * neighbors' rows as overlap and the result is identical to the single
+     * call path. With ROI tracking enabled and a recent detection, only the
+     * search window around it is processed (never tiled, it is small).
+     *
+     * @param conversion color conversion code
+     * @param convertedType type of the converted frame
+     * @param ch1Limit upper limit of the first channel for calibration, 0 if
+     * the pipeline cannot be calibrated by clicking
+     */
+    private void preprocessColor(Workspace ws, int conversion, int convertedType, int ch1Limit) {
+        boolean calibrating = ch1Limit > 0 && (ws.sharedInput ? ws.calibrating : mouseClicked);
+        SearchWindow searchWindow = searchWindow(ws);
+        int rows = ws.frame.rows();
+        int cols = ws.frame.cols();
+        ws.converted.create(rows, cols, convertedType);
+
+        // Restrict the search around the last detection (the click needs the full frame)
+        Workspace.Region region = ws.window(roiTracking && !calibrating ? searchWindow.next(cols, rows) : null);
+        int tiles = tiledProcessing && region == null ? Math.min(tileCount, rows / MIN_TILE_HEIGHT) : 1;
+        Mat frame = region != null ? region.frame : ws.frame;
+        Mat blurred = region != null ? region.blurred : ws.blurred;
+        Mat converted = region != null ? region.converted : ws.converted;
+        Mat mask = region != null ? region.mask : ws.mask;
+        Mat eroded = region != null ? region.eroded : ws.eroded;
+        Mat dilated = region != null ? region.dilated : ws.dilated;
+        if (region != null) {
+            // Do not show leftovers of previous frames outside the window
+            clearPreview(ws.converted, PreviewOutput.CONVERTED);
+            clearPreview(ws.eroded, PreviewOutput.FIRST_STEP);
+            clearPreview(ws.dilated, PreviewOutput.SECOND_STEP);
+        }
+
+        // Get thresholding values (unless the click is about to change them)
+        if (!calibrating) {
+            thresholds(ws);
+        }
+
+        // Blur, conversion and threshold of the strips are recorded together as COLOR
+        long t = timings.start();
+        if (tiles > 1) {
+            Workspace.Region[] strips = ws.strips(tiles);
+            inParallel(strips, (Workspace.Region strip) -> {
+                // Remove some noise (done already if shared)
+                if (!ws.sharedInput) {
+                    Imgproc.blur(strip.frame, strip.blurred, Workspace.BLUR_SIZE);
+                }
+                Imgproc.cvtColor(strip.blurred, strip.converted, conversion);
+                // Threshold image to select object
+                if (!calibrating) {
+                    Core.inRange(strip.converted, ws.minValues, ws.maxValues, strip.mask);
+                }
+            });
+            t = timings.record(Stage.COLOR, t, ws.sequence);
+        } else {
+            // Remove some noise (done already if shared)
+            if (!ws.sharedInput) {
+                Imgproc.blur(frame, blurred, Workspace.BLUR_SIZE);
+                t = timings.record(Stage.BLUR, t, ws.sequence);
+            }
+            Imgproc.cvtColor(blurred, converted, conversion);
+            t = timings.record(Stage.COLOR, t, ws.sequence);
+        }
+
+        // Get color of current coordinates
+        if (calibrating) {
+            calibrate(ws, ch1Limit, 255, 255);
+            thresholds(ws);
+            t = timings.start();
+        }
+        if (tiles <= 1 || calibrating) {
+            // Threshold image to select object
+            Core.inRange(converted, ws.minValues, ws.maxValues, mask);
+            t = timings.record(Stage.THRESHOLD, t, ws.sequence);
+        }
+
+        // Morphological operators (needs the whole mask, so after the strips are done)
+        // Erosion is only shown, never used for detection
+        boolean erode = wants(PreviewOutput.FIRST_STEP);
+        if (tiles > 1) {
+            inParallel(ws.strips(tiles), (Workspace.Region strip) -> {
+                if (erode) {
+                    Imgproc.erode(strip.mask, strip.eroded, Workspace.ERODE_ELEMENT);
+                }
+                Imgproc.dilate(strip.mask, strip.dilated, Workspace.DILATE_ELEMENT);
+            });
+        } else if (region != null) {
+            // Only the window was thresholded: the mask around it holds older frames,
+            // so the window is filtered on its own, as if nothing matched outside it
+            if (erode) {
+                Imgproc.erode(mask, eroded, Workspace.ERODE_ELEMENT, ANCHOR, 1,
+                        Core.BORDER_CONSTANT | Core.BORDER_ISOLATED, WHITE);
+            }
+            Imgproc.dilate(mask, dilated, Workspace.DILATE_ELEMENT, ANCHOR, 1,
+                    Core.BORDER_CONSTANT | Core.BORDER_ISOLATED, ZERO);
+        } else {
+            if (erode) {
+                Imgproc.erode(mask, eroded, Workspace.ERODE_ELEMENT);
+            }
+            Imgproc.dilate(mask, dilated, Workspace.DILATE_ELEMENT);
+        }
+        timings.record(Stage.MORPHOLOGY, t, ws.sequence);
+    }
+
+    private void clearPreview(Mat mat, PreviewOutput output) {
+        if (wants(output)) {
+            mat.setTo(BLACK);
+        }
+    }
+
+    /**
+     * Runs an action on every strip, the first one on the calling thread and
+     * the rest on the fork/join pool, and waits for all of them.
+     */
+    private static <T> void inParallel(T[] items, Consumer<T> action) {
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[items.length];
+        for (int i = 1; i < items.length; i++) {
+            T item = items[i];
+            tasks[i] = ForkJoinPool.commonPool().submit(() -> action.accept(item));
+        }
+        action.accept(items[0]);
+        for (int i = 1; i < tasks.length; i++) {
+            tasks[i].join();
+        }
+    }
+
+    /**
+     * Samples the area around the last mouse click and uses its channel
+     * ranges as the new thresholding values.
+     */
+    private void calibrate(Workspace ws, int ch1Limit, int ch2Limit, int ch3Limit) {
+        Mat patch = null;
+        try {
+            // Read the patch around the click in a single transfer
+            Rect area = new Rect(mx - CALIBRATION_RADIUS, my - CALIBRATION_RADIUS, 2 * CALIBRATION_RADIUS, 2 * CALIBRATION_RADIUS);
+            int x0 = Math.max(0, area.x), y0 = Math.max(0, area.y);
+            int x1 = Math.min(ws.converted.cols(), area.x + area.width);
+            int y1 = Math.min(ws.converted.rows(), area.y + area.height);
+            if (x1 <= x0 || y1 <= y0) {
+                return;
+            }
+            patch = ws.converted.submat(y0, y1, x0, x1);
+            int channels = patch.channels();
+            int size = (int) patch.total() * channels;
+            if (ws.calibrationPatch.length < size) {
+                ws.calibrationPatch = new byte[size];
+            }
+            byte[] data = ws.calibrationPatch;
+            patch.get(0, 0, data);
+
+            // Per channel histograms (the 4th channel of BGRA is ignored)
+            int[][] histograms = new int[3][256];
+            for (int i = 0; i < size; i += channels) {
+                histograms[0][data[i] & 0xFF]++;
+                histograms[1][data[i + 1] & 0xFF]++;
+                histograms[2][data[i + 2] & 0xFF]++;
+            }
+
+            // Bounds at the low and high percentiles, robust to outlier pixels
+            int pixels = size / channels;
+            int min1 = percentile(histograms[0], pixels, CALIBRATION_LOW_PERCENTILE);
+            int max1 = Math.min(ch1Limit, percentile(histograms[0], pixels, CALIBRATION_HIGH_PERCENTILE));
+            int min2 = percentile(histograms[1], pixels, CALIBRATION_LOW_PERCENTILE);
+            int max2 = Math.min(ch2Limit, percentile(histograms[1], pixels, CALIBRATION_HIGH_PERCENTILE));
+            int min3 = percentile(histograms[2], pixels, CALIBRATION_LOW_PERCENTILE);
+            int max3 = Math.min(ch3Limit, percentile(histograms[2], pixels, CALIBRATION_HIGH_PERCENTILE));
+            for (ChannelValuesListener listener : listeners) {
+                listener.channelsUpdated(min1, min2, min3, max1, max2, max3);
+            }
+            chMin1 = min1;
+            chMin2 = min2;
+            chMin3 = min3;
+            chMax1 = max1;
+            chMax2 = max2;
+            chMax3 = max3;
+            ws.annotate((Mat canvas) -> Imgproc.rectangle(canvas, new Point(x0, y0), new Point(x1, y1), CALIBRATION_COLOR, 4));
+        } catch (Exception ex) {
+            System.err.println("Exception during the frame elaboration: " + ex);
+        } finally {
+            if (patch != null) {
+                patch.release();
+            }
+            mouseClicked = false;
+        }
+    }
+
+    /**
+     * @param histogram counts per value
+     * @param total sum of the counts
+     * @param fraction fraction of the counts that must be at or below the
+     * value
+     * @return the smallest value with at least the given fraction of the
+     * counts at or below it
+     */
+    private static int percentile(int[] histogram, int total, double fraction) {
+        long target = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int value = 0; value < histogram.length; value++) {
+            seen += histogram[value];
+            if (seen >= target) {
+                return value;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Loads the thresholding values of the current pipeline into the
+     * workspace.
+     */
+    private void thresholds(Workspace ws) {
+        if (ws.type == ProcessType.PRECONFIG_HSV) {
+            Scalar min = objectColor.getHsvMin();
+            Scalar max = objectColor.getHsvMax();
+            Workspace.set(ws.minValues, min.val[0], min.val[1], min.val[2]);
+            Workspace.set(ws.maxValues, max.val[0], max.val[1], max.val[2]);
+        } else {
+            // Get thresholding values from the UI
+            Workspace.set(ws.minValues, chMin1, chMin2, chMin3);
+            Workspace.set(ws.maxValues, chMax1, chMax2, chMax3);
+        }
+    }
+
+    private void preprocessMultiColor(Workspace ws) {
+        ColorTable table = colorTable;
+        int rows = ws.frame.rows();
+        int cols = ws.frame.cols();
+        // Always the full frame, a search window follows a single object
+        ws.window(null);
+        ws.converted.create(rows, cols, CvType.CV_8UC3);
+
+        // Remove some noise (done already if shared) and convert once for every color
+        long t = timings.start();
+        if (!ws.sharedInput) {
+            Imgproc.blur(ws.frame, ws.blurred, Workspace.BLUR_SIZE);
+            t = timings.record(Stage.BLUR, t, ws.sequence);
+        }
+        Imgproc.cvtColor(ws.blurred, ws.converted, Imgproc.COLOR_BGR2HSV);
+        t = timings.record(Stage.COLOR, t, ws.sequence);
+
+        // Label every pixel with the colors it belongs to: one lookup per
+        // channel, then a pixel only keeps the colors all channels agree on
+        Core.LUT(ws.converted, table.getLut(), ws.classified);
+        Core.extractChannel(ws.classified, ws.mask, 0);
+        Core.extractChannel(ws.classified, ws.channel, 1);
+        Core.bitwise_and(ws.mask, ws.channel, ws.mask);
+        Core.extractChannel(ws.classified, ws.channel, 2);
+        Core.bitwise_and(ws.mask, ws.channel, ws.mask);
+        t = timings.record(Stage.THRESHOLD, t, ws.sequence);
+
+        // Pixels of any color, dilated once as in the single color pipelines
+        // (also the previews: any color, then the union of the dilated colors)
+        Core.compare(ws.mask, ZERO, ws.eroded, Core.CMP_GT);
+        Imgproc.dilate(ws.eroded, ws.dilated, Workspace.DILATE_ELEMENT);
+        timings.record(Stage.MORPHOLOGY, t, ws.sequence);
+    }
+
+    /**
+     * Detection stage of the multi color pipeline: blobs and tracking of each
+     * color. The tracked object is the first color found, in list order.
+     * <p>
+     * The dilated mask of all the colors is labeled once. A blob of a single
+     * color is the blob the mask of that color alone would give; only the
+     * blobs where colors touch are split, labeling each of their colors
+     * within their bounding box.
+     */
+    private void detectMultiColor(Workspace ws) {
+        ColorTable table = colorTable;
+        List<TrackedObject> objects = table.getObjects();
+        Map<TrackedObjectColor, Point> positions = new EnumMap<>(TrackedObjectColor.class);
+        Map<TrackedObjectColor, Point> previous = colorPositions;
+        boolean annotate = wants(PreviewOutput.FRAME);
+        Blobs all = ws.blobs;
+        all.analyze(ws.dilated, ws.labels, ORIGIN);
+        int[] bits = new int[all.count()];
+        for (int label = 1; label < all.count(); label++) {
+            bits[label] = colorBits(ws, all, label);
+        }
+        ws.ensureColorBuffers();
+        Blobs blobs = ws.colorBlobs;
+        Point first = null;
+        for (int k = 0; k < objects.size(); k++) {
+            TrackedObject object = objects.get(k);
+            int bit = 1 << k;
+            blobs.clear();
+            for (int label = 1; label < all.count(); label++) {
+                if (bits[label] == bit) {
+                    blobs.add(all, label);
+                } else if ((bits[label] & bit) != 0) {
+                    splitColor(ws, all, label, table.selector(k), blobs);
+                }
+            }
+            int target = blobs.select(previous.get(object.getType()));
+            if (annotate) {
+                drawBlobs(ws, blobs, object.getColor());
+            }
+            if (target > 0) {
+                Point center = blobs.centroid(target);
+                positions.put(object.getType(), center);
+                if (first == null) {
+                    first = center;
+                }
+                if (annotate) {
+                    ws.annotate((Mat canvas) -> Util.DrawCrosshairs(canvas, (int) center.x, (int) center.y));
+                }
+            }
+        }
+        colorPositions = Collections.unmodifiableMap(positions);
+        if (first != null) {
+            ws.found(first.x, first.y);
+        } else {
+            ws.position = null;
+        }
+    }
+
+    /**
+     * @return the colors of the pixels of a blob of the dilated mask, one bit
+     * per color
+     */
+    private static int colorBits(Workspace ws, Blobs blobs, int label) {
+        if (blobs.area(label) < Blobs.MIN_AREA) {
+            return 0;
+        }
+        Rect box = blobs.box(label);
+        int size = box.width * box.height;
+        if (ws.bitsData.length < size) {
+            ws.bitsData = new byte[size];
+            ws.labelsData = new int[size];
+        }
+        Mat mask = ws.mask.submat(box);
+        Mat labels = ws.labels.submat(box);
+        mask.get(0, 0, ws.bitsData);
+        labels.get(0, 0, ws.labelsData);
+        mask.release();
+        labels.release();
+        int bits = 0;
+        for (int i = 0; i < size; i++) {
+            if (ws.labelsData[i] == label) {
+                bits |= ws.bitsData[i] & 0xFF;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Labels one color of a blob where several colors touch, within its
+     * bounding box: the pixels of the color in the blob are dilated on their
+     * own, as the mask of that color alone would be.
+     *
+     * @param blobs the blobs of the color found are added here
+     */
+    private static void splitColor(Workspace ws, Blobs all, int label, Mat selector, Blobs blobs) {
+        Rect box = all.box(label);
+        Mat bits = ws.mask.submat(box);
+        Mat labels = ws.labels.submat(box);
+        Mat color = ws.channel.submat(box);
+        Mat inBlob = ws.colorMask.submat(box);
+        Mat colorLabels = ws.colorLabels.submat(box);
+        try {
+            Core.LUT(bits, selector, color);
+            Core.compare(labels, new Scalar(label), inBlob, Core.CMP_EQ);
+            Core.bitwise_and(color, inBlob, color);
+            Imgproc.dilate(color, inBlob, Workspace.DILATE_ELEMENT, ANCHOR, 1,
+                    Core.BORDER_CONSTANT | Core.BORDER_ISOLATED, ZERO);
+            Blobs touching = ws.touchingBlobs;
+            touching.analyze(inBlob, colorLabels, box.tl());
+            for (int part = 1; part < touching.count(); part++) {
+                blobs.add(touching, part);
+            }
+        } finally {
+            bits.release();
+            labels.release();
+            color.release();
+            inBlob.release();
+            colorLabels.release();
+        }
+    }
+
+    /**
+     * Common detection stage of the color pipelines: blobs and tracking.
+     */
+    private void detectColor(Workspace ws) {
+        SearchWindow searchWindow = searchWindow(ws);
+
+        // Label every blob of the mask in one pass
+        // (blobs found in a search window are moved back to frame coordinates)
+        Workspace.Region region = ws.region;
+        Mat dilated = region != null ? region.dilated : ws.dilated;
+        Mat labels = region != null ? region.labels : ws.labels;
+        Point offset = region != null ? region.rect.tl() : ORIGIN;
+        Blobs blobs = ws.blobs;
+        blobs.analyze(dilated, labels, offset);
+        int target = blobs.select(objectDetected ? trackedObject : null);
+
+        // Show them
+        boolean annotate = wants(PreviewOutput.FRAME);
+        if (annotate) {
+            drawBlobs(ws, blobs, CONTOUR_COLOR);
+            if (region != null) {
+                Rect searched = region.rect;
+                ws.annotate((Mat canvas) -> Imgproc.rectangle(canvas, searched.tl(), searched.br(), WINDOW_COLOR, 1));
+            }
+        }
+
+        // Track the target
+        if (target > 0) {
+            Point center = blobs.centroid(target);
+            ws.found(center.x, center.y);
+            if (roiTracking) {
+                searchWindow.hit(blobs.box(target), region != null);
+            }
+            if (annotate) {
+                ws.annotate((Mat canvas) -> Util.DrawCrosshairs(canvas, (int) center.x, (int) center.y));
+            }
+        } else {
+            ws.position = null;
+            if (roiTracking) {
+                searchWindow.miss(region != null);
+            }
+        }
+    }
+
+    private static void drawBlobs(Workspace ws, Blobs blobs, Scalar color) {
+        for (int label = 1; label < blobs.count(); label++) {
+            if (blobs.area(label) >= Blobs.MIN_AREA) {
+                Rect box = blobs.box(label);
+                ws.annotate((Mat canvas) -> Imgproc.rectangle(canvas, box.tl(), box.br(), color, 5));
+            }
+        }
+    }
+
+    private void track(double x, double y) {
+        trackedObject = new Point(x, y);
+        objectDetected = true;
+    }
+
+    private Workspace workspace(ProcessType type) {
+        Workspace ws = workspaces.get(type);
+        if (ws == null) {
+            ws = new Workspace();
+            ws.type = type;
+            workspaces.put(type, ws);
+        }
+        return ws;
+    }
+
+    public List<BufferedImage> ProcessFrame(BufferedImage currentFrame) {
+        return processFrame(currentFrame, 0);
+    }
+
+    /**
+     * @param sequence sequence number of the frame, for the flight recorder
+     */
+    List<BufferedImage> processFrame(BufferedImage currentFrame, long sequence) {
+        // Init everything
+        List<BufferedImage> results = null;
+
+        // Check if the capture is open
+        if (currentFrame != null) {
+            try {
+                // Read the current frame into the buffers of the current algorithm
+                Workspace ws = workspace(type);
+                ws.sequence = sequence;
+                load(currentFrame, ws);
+                // Flip image for easy object manipulation
+                //Core.flip(frame, frame, 1);
+                preprocess(ws);
+                detect(ws);
+                // If the drone is in tracking mode, then draw boundaries
+                //if (dm.isDroneTracking() && frame != null) {
+                //    Imgproc.rectangle(frame, new Point(0, 0), new Point(Config.MAX_LEFT, 720), new Scalar(255, 0, 255), 5);
+                //    Imgproc.rectangle(frame, new Point(Config.MAX_RIGHT, 0), new Point(1280, 720), new Scalar(255, 0, 255), 5);
+                //}
+                // convert the Mat object (OpenCV) to Image (Java AWT)
+                results = render(ws);
+            } catch (Exception e) {
+                // log the error
+                System.err.println("Exception during the frame elaboration: " + e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Copies an image into the frame buffer of a workspace, always BGR.
+     */
+    void load(BufferedImage image, Workspace ws) {
+        long t = timings.start();
+        ws.ensureSize(image.getHeight(), image.getWidth());
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            // Every pipeline starts from BGR, gray recordings are expanded
+            Util.Image2Mat(image, ws.input);
+            if (ws.input.channels() == 1) {
+                Imgproc.cvtColor(ws.input, ws.frame, Imgproc.COLOR_GRAY2BGR);
+            } else {
+                ws.input.copyTo(ws.frame);
+            }
+        } else {
+            Util.Image2Mat(image, ws.frame);
+        }
+        timings.record(Stage.LOAD, t, ws.sequence);
+    }
+
+    /**
+     * Processes a frame with the current execution mode. In
+     * {@link ExecutionMode#SEQUENTIAL} mode the frame is processed right away;
+     * in {@link ExecutionMode#PIPELINED} mode the first stage runs on the
+     * calling thread and the rest is handed off to the pipeline threads. Either
+     * way, results are delivered to the {@link ProcessedImagesListener}s.
+     *
+     * @param currentFrame the frame to process
+     * @throws InterruptedException if interrupted while waiting for the
+     * pipeline
+     */
+    public void submitFrame(BufferedImage currentFrame) throws InterruptedException {
+        submitFrame(currentFrame, 0);
+    }
+
+    /**
+     * Same as {@link #submitFrame(BufferedImage)}, with the sequence number
+     * the flight recorder events of the frame are tagged with.
+     *
+     * @param currentFrame the frame to process
+     * @param sequence sequence number of the frame
+     * @throws InterruptedException if interrupted while waiting for the
+     * pipeline
+     */
+    public void submitFrame(BufferedImage currentFrame, long sequence) throws InterruptedException {
+        if (currentFrame == null) {
+            return;
+        }
+        switch (executionMode) {
+            case SEQUENTIAL:
+                List<BufferedImage> results = processFrame(currentFrame, sequence);
+                if (results != null) {
+                    imagesProcessed(results, sequence);
+                }
+                break;
+            case PIPELINED:
+                pipeline().submit(currentFrame, type, sequence);
+                break;
+            case FRAME_PARALLEL:
+                parallel().submit(currentFrame, sequence);
+                break;
+        }
+    }
+
+    /**
+     * Publishes the detection of a frame processed by a worker.
+     */
+    void detectionProcessed(long sequence, boolean detected, Point position, Map<TrackedObjectColor, Point> positions,
+            Map<ProcessType, Point> detections, int frameWidth, int frameHeight) {
+        detectionSequence = sequence;
+        colorPositions = positions;
+        ensembleDetections = detections;
+        if (detected) {
+            track(position.x, position.y);
+        } else {
+            objectDetected = false;
+        }
+        detectionUpdated(sequence, detected ? position : null, frameWidth, frameHeight);
+    }
+
+    private void detectionUpdated(long sequence, Point position, int frameWidth, int frameHeight) {
+        detectionListeners.forEach((listener) -> {
+            listener.detectionUpdated(sequence, position != null, position, frameWidth, frameHeight);
+        });
+    }
+
+    /**
+     * Creates a processor with its own classifier and buffers for
+     * {@link ExecutionMode#FRAME_PARALLEL} mode.
+     */
+    VideoProcessor createWorker() {
+        VideoProcessor worker = new VideoProcessor(dm, width, height);
+        worker.previewSubscribers = previewSubscribers;
+        worker.timings = timings;
+        worker.framesProcessed = framesProcessed;
+        worker.framesDetected = framesDetected;
+        worker.processingRate = processingRate;
+        // Colors picked by clicking on a worker frame are adopted by everyone
+        worker.addListener((int min1, int min2, int min3, int max1, int max2, int max3) -> {
+            setChannelValues(min1, min2, min3, max1, max2, max3);
+            listeners.forEach((listener) -> {
+                listener.channelsUpdated(min1, min2, min3, max1, max2, max3);
+            });
+        });
+        return worker;
+    }
+
+    /**
+     * Copies the current settings into a worker before it takes a frame.
+     */
+    void configureWorker(VideoProcessor worker) {
+        worker.type = type;
+        worker.ensemble = ensemble;
+        worker.objectColor = objectColor;
+        worker.colorTable = colorTable;
+        worker.tiledProcessing = tiledProcessing;
+        worker.tileCount = tileCount;
+        worker.trackingOnly = trackingOnly;
+        worker.roiTracking = roiTracking;
+        worker.faceDetectionLevel = faceDetectionLevel;
+        worker.qrTryHarder = qrTryHarder;
+        worker.asyncFaceDetection = asyncFaceDetection;
+        worker.asyncQrDetection = asyncQrDetection;
+        worker.qrDecodeInterval = qrDecodeInterval;
+        worker.faceDetectionInterval = faceDetectionInterval;
+        worker.qrDownscale = qrDownscale;
+        worker.setChannelValues(chMin1, chMin2, chMin3, chMax1, chMax2, chMax3);
+        if (mouseClicked) {
+            mouseClicked = false;
+            worker.MouseClicked(mx, my);
+        }
+    }
+
+    private synchronized ParallelFrameProcessor parallel() {
+        if (parallel == null) {
+            parallel = new ParallelFrameProcessor(this, parallelWorkers);
+        }
+        return parallel;
+    }
+
+    void imagesProcessed(List<BufferedImage> results, long sequence) {
+        if (results.isEmpty()) {
+            return;
+        }
+        long t = timings.start();
+        imageListeners.forEach((listener) -> {
+            listener.imageUpdated(results);
+        });
+        timings.record(Stage.DISPATCH, t, sequence);
+    }
+
+    private synchronized FramePipeline pipeline() {
+        if (pipeline == null) {
+            pipeline = new FramePipeline(this);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Stops the pipeline threads, if any.
+     */
+    public synchronized void shutdown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        if (parallel != null) {
+            parallel.shutdown();
+            parallel = null;
+        }
+        if (faceDetector != null) {
+            faceDetector.shutdown();
+            faceDetector = null;
+        }
+        if (qrDetector != null) {
+            qrDetector.shutdown();
+            qrDetector = null;
+        }
+    }
+
+    public void MouseClicked(int x, int y) {
+        mouseClicked = true;
+        mx = x;
+        my = y;
+    }
+
+    public void setChannelValues(int chMin1, int chMin2, int chMin3, int chMax1, int chMax2, int chMax3) {
+        this.chMin1 = chMin1;
+        this.chMin2 = chMin2;
+        this.chMin3 = chMin3;
+        this.chMax1 = chMax1;
+        this.chMax2 = chMax2;
+        this.chMax3 = chMax3;
+    }
+
+    /**
+     * @return the type
+     */
+    public ProcessType getType() {
+        return type;
+    }
+
+    /**
+     * @param type the type to set
+     */
+    public void setType(ProcessType type) {
+        this.type = type;
+        resetWindows();
+    }
+
+    /**
+     * @return the detectors run together in ensemble mode, in priority order;
+     * empty if only {@link #getType()} runs
+     */
+    public List<ProcessType> getEnsemble() {
+        return ensemble;
+    }
+
+    /**
+     * Runs several detectors on every frame instead of {@link #getType()}.
+     * They share the frame and its common preprocessing and run in parallel;
+     * the tracked object comes from the first one, in the given order, that
+     * found something.
+     *
+     * @param types the detectors in priority order, empty to go back to a
+     * single type
+     */
+    public void setEnsemble(List<ProcessType> types) {
+        this.ensemble = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(types)));
+    }
+
+    /**
+     * @return the position found by each detector of the ensemble in the last
+     * frame
+     */
+    public Map<ProcessType, Point> getEnsembleDetections() {
+        return ensembleDetections;
+    }
+
+    /**
+     * @return the executionMode
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * @param executionMode the executionMode to set
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        if (executionMode != this.executionMode) {
+            shutdown();
+        }
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * @return the number of workers used in
+     * {@link ExecutionMode#FRAME_PARALLEL} mode
+     */
+    public int getParallelWorkers() {
+        return parallelWorkers;
+    }
+
+    /**
+     * @param parallelWorkers the number of workers used in
+     * {@link ExecutionMode#FRAME_PARALLEL} mode, applied the next time the
+     * mode is enabled
+     */
+    public void setParallelWorkers(int parallelWorkers) {
+        this.parallelWorkers = Math.max(1, parallelWorkers);
+    }
+
+    /**
+     * @return the number of results discarded in
+     * {@link ExecutionMode#FRAME_PARALLEL} mode because a later frame had
+     * already been delivered
+     */
+    public synchronized long getLateFramesDropped() {
+        return parallel != null ? parallel.getDropped() : 0;
+    }
+
+    /**
+     * @return the time spent in each stage, by every thread processing frames
+     */
+    public StageTimings getStageTimings() {
+        return timings;
+    }
+
+    /**
+     * @return the sequence number of the frame the current detection state
+     * ({@link #ObjectDetected()}, {@link #getTrackedObject()}) comes from
+     */
+    public long getDetectionSequence() {
+        return detectionSequence;
+    }
+
+    /**
+     * @return the number of frames through the detection stage
+     */
+    public long getFramesProcessed() {
+        return framesProcessed.sum();
+    }
+
+    /**
+     * @return the frames through the detection stage per second, over the
+     * last second
+     */
+    public double getProcessingFps() {
+        return processingRate.getRate();
+    }
+
+    /**
+     * @return the number of frames the object was found in
+     */
+    public long getFramesDetected() {
+        return framesDetected.sum();
+    }
+
+    /**
+     * Registers interest in a preview output. Outputs nobody subscribed to are
+     * not produced.
+     *
+     * @param output the output to produce
+     */
+    public void subscribe(PreviewOutput output) {
+        previewSubscribers.incrementAndGet(output.ordinal());
+    }
+
+    /**
+     * Withdraws a previous {@link #subscribe(PreviewOutput)}.
+     *
+     * @param output the output no longer needed
+     */
+    public void unsubscribe(PreviewOutput output) {
+        previewSubscribers.getAndUpdate(output.ordinal(), (int count) -> Math.max(0, count - 1));
+    }
+
+    /**
+     * @return whether only coordinates are produced
+     */
+    public boolean isTrackingOnly() {
+        return trackingOnly;
+    }
+
+    /**
+     * @param trackingOnly true to skip every image (annotations and previews)
+     * and only update the tracked object
+     */
+    public void setTrackingOnly(boolean trackingOnly) {
+        this.trackingOnly = trackingOnly;
+    }
+
+    /**
+     * @return whether the color pipelines, face and QR detection first search
+     * around the last detection
+     */
+    public boolean isRoiTracking() {
+        return roiTracking;
+    }
+
+    /**
+     * @param roiTracking true to restrict the color pipelines and face
+     * detection to a window around the last detection (QR detection tries it
+     * first), false to always search the full frame
+     */
+    public void setRoiTracking(boolean roiTracking) {
+        this.roiTracking = roiTracking;
+        resetWindows();
+    }
+
+    /**
+     * @return frames where the object was found inside the search window
+     */
+    public long getRoiHits() {
+        return searchWindow.getHits();
+    }
+
+    /**
+     * @return frames where the object was not found inside the search window
+     */
+    public long getRoiMisses() {
+        return searchWindow.getMisses();
+    }
+
+    /**
+     * @return frames searched completely while ROI tracking was enabled
+     */
+    public long getRoiFullFrameSearches() {
+        return searchWindow.getFullFrameSearches();
+    }
+
+    /**
+     * @return average search window area, as a fraction of the frame
+     */
+    public double getRoiAverageWindowFraction() {
+        return searchWindow.getAverageWindowFraction();
+    }
+
+    /**
+     * @return the pyramid level faces are searched at
+     */
+    public int getFaceDetectionLevel() {
+        return faceDetectionLevel;
+    }
+
+    /**
+     * @param faceDetectionLevel the pyramid level faces are searched at: 0 for
+     * full resolution, 1 for half, 2 for quarter...
+     */
+    public void setFaceDetectionLevel(int faceDetectionLevel) {
+        this.faceDetectionLevel = Math.max(0, faceDetectionLevel);
+    }
+
+    /**
+     * @return faces found inside the search window
+     */
+    public long getFaceRoiHits() {
+        return faceWindow.getHits();
+    }
+
+    /**
+     * @return frames where no face was found inside the search window
+     */
+    public long getFaceRoiMisses() {
+        return faceWindow.getMisses();
+    }
+
+    /**
+     * @return whether the face cascade runs on a background thread
+     */
+    public boolean isAsyncFaceDetection() {
+        return asyncFaceDetection;
+    }
+
+    /**
+     * @param asyncFaceDetection true to run the face cascade on a background
+     * thread and follow the face with a template tracker in between, false to
+     * run the cascade on every frame
+     */
+    public void setAsyncFaceDetection(boolean asyncFaceDetection) {
+        this.asyncFaceDetection = asyncFaceDetection;
+    }
+
+    /**
+     * @return the frames between background face detections
+     */
+    public int getFaceDetectionInterval() {
+        return faceDetectionInterval;
+    }
+
+    /**
+     * @param faceDetectionInterval the frames between background face
+     * detections (the cascade also runs whenever the tracker loses the face)
+     */
+    public void setFaceDetectionInterval(int faceDetectionInterval) {
+        this.faceDetectionInterval = Math.max(1, faceDetectionInterval);
+    }
+
+    /**
+     * @return frames whose face position came from a fresh cascade result
+     */
+    public long getFaceDetectionFrames() {
+        return faceDetectionFrames;
+    }
+
+    /**
+     * @return frames whose face position came from the tracker
+     */
+    public long getFaceTrackingFrames() {
+        return faceTrackingFrames;
+    }
+
+    /**
+     * @return whether QR codes are decoded on a background thread
+     */
+    public boolean isAsyncQrDetection() {
+        return asyncQrDetection;
+    }
+
+    /**
+     * @param asyncQrDetection true to decode QR codes on a background thread
+     * and follow their finder patterns with optical flow in between, false to
+     * decode every frame
+     */
+    public void setAsyncQrDetection(boolean asyncQrDetection) {
+        this.asyncQrDetection = asyncQrDetection;
+    }
+
+    /**
+     * @return the frames between background QR decodes
+     */
+    public int getQrDecodeInterval() {
+        return qrDecodeInterval;
+    }
+
+    /**
+     * @param qrDecodeInterval the frames between background QR decodes (the
+     * code is also decoded whenever the flow loses it)
+     */
+    public void setQrDecodeInterval(int qrDecodeInterval) {
+        this.qrDecodeInterval = Math.max(1, qrDecodeInterval);
+    }
+
+    /**
+     * @return the text of the last QR code decoded, or null
+     */
+    public String getQrPayload() {
+        return qrPayload;
+    }
+
+    /**
+     * @return frames whose QR position came from a fresh decode
+     */
+    public long getQrDecodeFrames() {
+        return qrDecodeFrames;
+    }
+
+    /**
+     * @return frames whose QR position came from the optical flow
+     */
+    public long getQrTrackingFrames() {
+        return qrTrackingFrames;
+    }
+
+    /**
+     * @return whether QR decoding spends more time looking for the code
+     */
+    public boolean isQrTryHarder() {
+        return qrTryHarder;
+    }
+
+    /**
+     * @param qrTryHarder true to spend more time looking for QR codes
+     */
+    public void setQrTryHarder(boolean qrTryHarder) {
+        this.qrTryHarder = qrTryHarder;
+    }
+
+    /**
+     * @return whether QR decoding tries a half resolution copy first
+     */
+    public boolean isQrDownscale() {
+        return qrDownscale;
+    }
+
+    /**
+     * @param qrDownscale true to try decoding a half resolution copy of the
+     * frame before the full frame
+     */
+    public void setQrDownscale(boolean qrDownscale) {
+        this.qrDownscale = qrDownscale;
+    }
+
+    /**
+     * @return whether the color pipelines run in parallel strips
+     */
+    public boolean isTiledProcessing() {
+        return tiledProcessing;
+    }
+
+    /**
+     * @param tiledProcessing true to split the color pipelines in horizontal
+     * strips processed in parallel, false for the single call path
+     */
+    public void setTiledProcessing(boolean tiledProcessing) {
+        this.tiledProcessing = tiledProcessing;
+    }
+
+    /**
+     * @return the number of strips used by tiled processing
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @param tileCount the number of strips used by tiled processing
+     */
+    public void setTileCount(int tileCount) {
+        this.tileCount = Math.max(1, tileCount);
     }
 
     /**
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.cv;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Native buffers and kernels used to process a frame with one
+ * {@link VideoProcessor.ProcessType}. Buffers are sized once and only
+ * reallocated when the frame size changes, so steady-state processing does
+ * not allocate native memory. In ensemble mode the workspace holds the frame
+ * and one member workspace per detector, sharing its input buffers.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+class Workspace {
+
+    // Noise removal kernel for the color pipelines
+    static final Size BLUR_SIZE = new Size(7, 7);
+    // Noise removal kernel for the QR pipeline
+    static final Size QR_BLUR_SIZE = new Size(5, 5);
+    // Morphological operators: dilate with large element, erode with small ones
+    static final Mat DILATE_ELEMENT = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(24, 24));
+    static final Mat ERODE_ELEMENT = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(12, 12));
+    // Unbounded size for detectMultiScale
+    static final Size NO_SIZE = new Size();
+
+    // Algorithm the frame is processed with
+    VideoProcessor.ProcessType type;
+    // Sequence number of the frame, 0 if unknown
+    long sequence;
+    // Input frame (BGR)
+    final Mat frame;
+    // Gray input images, before they are expanded to BGR
+    final Mat input = new Mat();
+    // Color pipelines
+    final Mat blurred;
+    final Mat converted = new Mat();
+    final Mat mask = new Mat();
+    final Mat eroded = new Mat();
+    final Mat dilated = new Mat();
+    final Mat labels = new Mat();
+    final Blobs blobs = new Blobs();
+    final Scalar minValues = new Scalar(0, 0, 0);
+    final Scalar maxValues = new Scalar(0, 0, 0);
+    // Multi color pipeline: per channel color bits and one channel of them
+    final Mat classified = new Mat();
+    final Mat channel = new Mat();
+    // Multi color pipeline: mask and labels of one color where colors touch, the blobs found there
+    // and the blobs of each color; color bits and labels read around a blob
+    final Mat colorMask = new Mat();
+    final Mat colorLabels = new Mat();
+    final Blobs touchingBlobs = new Blobs();
+    final Blobs colorBlobs = new Blobs();
+    byte[] bitsData = new byte[0];
+    int[] labelsData = new int[0];
+    // Pixels of the calibration patch
+    byte[] calibrationPatch = new byte[0];
+    // Gray pipelines (faces & QR)
+    final Mat gray;
+    final Mat equalized = new Mat();
+    final Mat scaled = new Mat();
+    final Mat binarized = new Mat();
+    final MatOfRect faces = new MatOfRect();
+    final Size minFaceSize = new Size();
+    final Size maxFaceSize = new Size();
+    // Downscale factor of the face search buffers
+    int faceScale = 1;
+    // Output images: annotated frame plus up to 3 intermediate steps
+    final BufferedImage[] previews = new BufferedImage[4];
+    // Horizontal strips of the color buffers, for tiled processing
+    private Region[] strips;
+    // Converted buffer the strips were taken from
+    private long stripsConverted;
+    // Current frame size
+    private int rows, cols;
+
+    // Search window of the current frame (null for the full frame) and its views
+    Rect window;
+    Region region;
+    // Views of the search window, moved along with it from frame to frame
+    private Region windowViews;
+    // Converted buffer the window views were taken from
+    private long windowConverted;
+
+    // Detection result of the current frame, null if nothing was found
+    Point position;
+
+    // Ensemble: frame, gray and blurred are shared with (and computed by) a host
+    final boolean sharedInput;
+    // Detectors run on the current frame in priority order, null outside ensemble mode
+    List<VideoProcessor.ProcessType> active;
+    // Their workspaces
+    private final Map<VideoProcessor.ProcessType, Workspace> members = new EnumMap<>(VideoProcessor.ProcessType.class);
+    // Ensemble member: takes the pending click (only one member of the frame does)
+    boolean calibrating;
+    // Ensemble member: drawings left for the host, the members never write the shared frame
+    private final List<Consumer<Mat>> annotations = new ArrayList<>();
+
+    Workspace() {
+        frame = new Mat();
+        blurred = new Mat();
+        gray = new Mat();
+        sharedInput = false;
+    }
+
+    /**
+     * Creates an ensemble member reading the input buffers of its host.
+     */
+    private Workspace(Workspace host, VideoProcessor.ProcessType type) {
+        frame = host.frame;
+        blurred = host.blurred;
+        gray = host.gray;
+        sharedInput = true;
+        this.type = type;
+    }
+
+    /**
+     * @param type a detector of the ensemble
+     * @return the workspace of that detector, sized as this one
+     */
+    Workspace member(VideoProcessor.ProcessType type) {
+        Workspace member = members.get(type);
+        if (member == null) {
+            member = new Workspace(this, type);
+            members.put(type, member);
+        }
+        member.ensureSize(rows, cols);
+        return member;
+    }
+
+    /**
+     * Draws on the frame, right away or, for an ensemble member, once the
+     * host collects the drawings of every member.
+     *
+     * @param drawing the drawing, given the frame to draw on
+     */
+    void annotate(Consumer<Mat> drawing) {
+        if (sharedInput) {
+            annotations.add(drawing);
+        } else {
+            drawing.accept(frame);
+        }
+    }
+
+    /**
+     * Makes the pending drawings of an ensemble member on the shared frame.
+     */
+    void flushAnnotations() {
+        for (Consumer<Mat> drawing : annotations) {
+            drawing.accept(frame);
+        }
+        annotations.clear();
+    }
+
+    /**
+     * Drops the pending drawings of an ensemble member.
+     */
+    void clearAnnotations() {
+        annotations.clear();
+    }
+
+    void found(double x, double y) {
+        position = new Point(x, y);
+    }
+
+    /**
+     * The same area of each color buffer. Regions are views, so filters
+     * applied to them read the neighboring pixels of the full buffer.
+     */
+    static class Region {
+
+        Rect rect;
+        final Mat frame, blurred, converted, mask, eroded, dilated, labels;
+
+        Region(Workspace ws, Rect rect) {
+            this.rect = rect;
+            frame = ws.frame.submat(rect);
+            blurred = ws.blurred.submat(rect);
+            converted = ws.converted.submat(rect);
+            mask = ws.mask.submat(rect);
+            eroded = ws.eroded.submat(rect);
+            dilated = ws.dilated.submat(rect);
+            labels = ws.labels.submat(rect);
+        }
+
+        /**
+         * Moves the views to another area of the same buffers, without
+         * allocating new headers.
+         *
+         * @param to the new area
+         */
+        void moveTo(Rect to) {
+            int top = rect.y - to.y;
+            int bottom = to.y + to.height - rect.y - rect.height;
+            int left = rect.x - to.x;
+            int right = to.x + to.width - rect.x - rect.width;
+            frame.adjustROI(top, bottom, left, right);
+            blurred.adjustROI(top, bottom, left, right);
+            converted.adjustROI(top, bottom, left, right);
+            mask.adjustROI(top, bottom, left, right);
+            eroded.adjustROI(top, bottom, left, right);
+            dilated.adjustROI(top, bottom, left, right);
+            labels.adjustROI(top, bottom, left, right);
+            rect = to;
+        }
+
+        void release() {
+            frame.release();
+            blurred.release();
+            converted.release();
+            mask.release();
+            eroded.release();
+            dilated.release();
+            labels.release();
+        }
+    }
+
+    /**
+     * Makes sure every buffer matches the given frame size.
+     *
+     * @param rows frame height
+     * @param cols frame width
+     * @return true if the buffers were (re)allocated
+     */
+    boolean ensureSize(int rows, int cols) {
+        if (rows == this.rows && cols == this.cols) {
+            return false;
+        }
+        this.rows = rows;
+        this.cols = cols;
+        releaseStrips();
+        releaseWindow();
+        frame.create(rows, cols, CvType.CV_8UC3);
+        blurred.create(rows, cols, CvType.CV_8UC3);
+        // converted is sized by the first color conversion (HSV is 3 channels, BGRA is 4)
+        mask.create(rows, cols, CvType.CV_8UC1);
+        eroded.create(rows, cols, CvType.CV_8UC1);
+        dilated.create(rows, cols, CvType.CV_8UC1);
+        labels.create(rows, cols, CvType.CV_32SC1);
+        gray.create(rows, cols, CvType.CV_8UC1);
+        equalized.create(rows, cols, CvType.CV_8UC1);
+        binarized.create(rows, cols, CvType.CV_8UC1);
+        return true;
+    }
+
+    /**
+     * Makes sure the buffers of the multi color pipeline match the current
+     * frame size.
+     */
+    void ensureColorBuffers() {
+        colorMask.create(rows, cols, CvType.CV_8UC1);
+        colorLabels.create(rows, cols, CvType.CV_32SC1);
+    }
+
+    /**
+     * Splits the color buffers in horizontal strips of (about) the same
+     * height. The converted buffer must be allocated already.
+     *
+     * @param count number of strips
+     * @return the strips, reused while the buffers do not change
+     */
+    Region[] strips(int count) {
+        if (strips == null || strips.length != count || stripsConverted != converted.dataAddr()) {
+            releaseStrips();
+            strips = new Region[count];
+            for (int i = 0; i < count; i++) {
+                int top = rows * i / count;
+                strips[i] = new Region(this, new Rect(0, top, cols, rows * (i + 1) / count - top));
+            }
+            stripsConverted = converted.dataAddr();
+        }
+        return strips;
+    }
+
+    /**
+     * Sets the search window of the current frame. The views are moved along
+     * with the window and only taken again when the buffers are reallocated.
+     *
+     * @param window the window, or null for the full frame
+     * @return views of the window, or null for the full frame
+     */
+    Region window(Rect window) {
+        this.window = window;
+        if (window == null) {
+            region = null;
+        } else if (windowViews != null && windowConverted == converted.dataAddr()) {
+            windowViews.moveTo(window);
+            region = windowViews;
+        } else {
+            releaseWindow();
+            windowViews = new Region(this, window);
+            windowConverted = converted.dataAddr();
+            region = windowViews;
+        }
+        return region;
+    }
+
+    private void releaseWindow() {
+        if (windowViews != null) {
+            windowViews.release();
+            windowViews = null;
+        }
+        region = null;
+    }
+
+    private void releaseStrips() {
+        if (strips != null) {
+            for (Region strip : strips) {
+                strip.release();
+            }
+            strips = null;
+        }
+    }
+
+    /**
+     * Converts a buffer into the image kept for the given output slot.
+     *
+     * @param mat the buffer to show
+     * @param slot output position
+     * @return the (reused) image
+     */
+    BufferedImage toImage(Mat mat, int slot) {
+        previews[slot] = Util.Mat2Image(mat, previews[slot]);
+        return previews[slot];
+    }
+
+    static void set(Scalar scalar, double v0, double v1, double v2) {
+        scalar.val[0] = v0;
+        scalar.val[1] = v1;
+        scalar.val[2] = v2;
+    }
+}
+
+// EOF
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.drone;
+
+import de.yadrone.base.ARDrone;
+import de.yadrone.base.command.VideoChannel;
+import de.yadrone.base.command.VideoCodec;
+import de.yadrone.base.navdata.AltitudeListener;
+import de.yadrone.base.navdata.BatteryListener;
+import mx.iteso.msc.ms705080.togapp.Config;
+import mx.iteso.msc.ms705080.togapp.source.DroneFrameSource;
+import mx.iteso.msc.ms705080.togapp.source.FrameSource;
+
+/**
+ * A real AR.Drone, through YADrone.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class ARDroneController implements DroneController {
+
+    private final ARDrone drone;
+    private final FrameSource camera;
+
+    public ARDroneController() {
+        // Initialize drone
+        drone = new ARDrone();
+        drone.setHorizontalCamera();
+        drone.setMaxAltitude(Config.MAX_ALTITUDE);
+        drone.setSpeed(Config.DRONE_SPEED);
+        drone.getCommandManager().setOutdoor(false, false);
+        drone.getCommandManager().setVideoChannel(VideoChannel.HORI);
+        drone.getCommandManager().setVideoCodec(VideoCodec.H264_720P);
+        camera = new DroneFrameSource(drone);
+    }
+
+    @Override
+    public void start() {
+        drone.start();
+    }
+
+    @Override
+    public void stop() {
+        drone.stop();
+    }
+
+    @Override
+    public void takeOff() {
+        drone.takeOff();
+    }
+
+    @Override
+    public void landing() {
+        drone.landing();
+    }
+
+    @Override
+    public void hover() {
+        drone.hover();
+    }
+
+    @Override
+    public void reset() {
+        drone.reset();
+    }
+
+    @Override
+    public void move(int roll, int pitch, int vertical, int yaw) {
+        // Forward is a negative front/back tilt
+        drone.getCommandManager().move(roll / 100.0f, -pitch / 100.0f, vertical / 100.0f, yaw / 100.0f);
+    }
+
+    @Override
+    public void addAltitudeListener(AltitudeListener listener) {
+        drone.getNavDataManager().addAltitudeListener(listener);
+    }
+
+    @Override
+    public void addBatteryListener(BatteryListener listener) {
+        drone.getNavDataManager().addBatteryListener(listener);
+    }
+
+    @Override
+    public FrameSource getCamera() {
+        return camera;
+    }
+}
+
+// EOF
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.drone;
+
+import de.yadrone.base.navdata.AltitudeListener;
+import de.yadrone.base.navdata.BatteryListener;
+import mx.iteso.msc.ms705080.togapp.source.FrameSource;
+
+/**
+ * The parts of the drone used by the application: flight commands, navdata
+ * and the camera. Speeds are percentages of the maximum speed, as in
+ * YADrone.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public interface DroneController {
+
+    /**
+     * Connects to the drone and starts receiving navdata.
+     */
+    void start();
+
+    /**
+     * Disconnects from the drone.
+     */
+    void stop();
+
+    void takeOff();
+
+    void landing();
+
+    void hover();
+
+    void reset();
+
+    /**
+     * Moves on every axis at once, without waiting. The drone keeps the
+     * motion until the next command.
+     *
+     * @param roll percentage of the maximum tilt, positive to the right
+     * @param pitch percentage of the maximum tilt, positive forward
+     * @param vertical percentage of the maximum vertical speed, positive up
+     * @param yaw percentage of the maximum yaw rate, positive to the right
+     */
+    void move(int roll, int pitch, int vertical, int yaw);
+
+    void addAltitudeListener(AltitudeListener listener);
+
+    void addBatteryListener(BatteryListener listener);
+
+    /**
+     * @return the front camera
+     */
+    FrameSource getCamera();
+}
+
+// EOF
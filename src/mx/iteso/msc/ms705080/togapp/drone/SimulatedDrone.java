@@ -0,0 +1,369 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.drone;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.qrcode.QRCodeWriter;
+import de.yadrone.base.navdata.AltitudeListener;
+import de.yadrone.base.navdata.BatteryListener;
+import de.yadrone.base.video.ImageListener;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import mx.iteso.msc.ms705080.togapp.Config;
+import mx.iteso.msc.ms705080.togapp.source.FrameSource;
+
+/**
+ * Local stand-in for the AR.Drone. The drone can only yaw and move
+ * vertically, as with the commands the tracker sends, in a room with a target
+ * (a colored ball, a QR code or any image, e.g. a face) moving in front of
+ * it. The camera renders what the drone would see and the target drifts
+ * across the frame unless the drone follows it, which closes the tracking
+ * loop without hardware. The angle between the camera axis and the target is
+ * recorded as the tracking error.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class SimulatedDrone implements DroneController {
+
+    /**
+     * What the drone looks at.
+     */
+    public enum Target {
+        COLOR,
+        QR_CODE,
+        IMAGE
+    }
+
+    // Simulation and camera rate
+    private static final int FPS = 30;
+    // Camera
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final double HORIZONTAL_FOV = 92.0d;
+    // Flight limits, at 100% speed
+    private static final double MAX_YAW_RATE = 100.0d;      // degrees per second
+    private static final double MAX_VERTICAL_SPEED = 1000.0d; // millimeters per second
+    private static final double TAKE_OFF_ALTITUDE = 1000.0d; // millimeters
+    // A move lasts this long without a new command, in milliseconds
+    private static final long MOVE_TIMEOUT = 250;
+    // Target: distance, size and motion (a slow Lissajous figure)
+    private static final double TARGET_DISTANCE = 3000.0d;  // millimeters
+    private static final double TARGET_SIZE = 400.0d;       // millimeters
+    // A QR code sheet, large enough for the modules to survive the blur of the QR pipeline
+    private static final double QR_CODE_SIZE = 900.0d;      // millimeters
+    private static final double TARGET_AZIMUTH_AMPLITUDE = 30.0d; // degrees
+    private static final double TARGET_AZIMUTH_PERIOD = 20.0d;    // seconds
+    private static final double TARGET_HEIGHT_AMPLITUDE = 300.0d; // millimeters
+    private static final double TARGET_HEIGHT_PERIOD = 13.0d;     // seconds
+    // Battery drain while flying, percent per second
+    private static final double BATTERY_DRAIN = 0.1d;
+    // Span of the recent tracking error, in seconds
+    private static final int RECENT_ERROR_SPAN = 10;
+
+    private final Target target;
+    private final BufferedImage targetImage;
+    // 360 degrees of room around the drone
+    private final BufferedImage panorama;
+    // Focal length, in pixels
+    private final double focal;
+    private final FrameSource camera = new Camera();
+    private final List<AltitudeListener> altitudeListeners = new CopyOnWriteArrayList<>();
+    private final List<BatteryListener> batteryListeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService timer;
+    private volatile ImageListener imageListener;
+
+    // Flight state, guarded by this
+    private boolean flying;
+    private double yaw;
+    private double altitude;
+    private double battery = 100.0d;
+    private double yawRate;
+    private long yawUntil;
+    private double verticalSpeed;
+    private long verticalUntil;
+    private double elapsed;
+    private long ticks;
+    // Tracking error statistics, in degrees
+    private long errorSamples;
+    private double errorSquares;
+    private double maxError;
+    // Squared errors of the last ticks flying, to see the loop settle
+    private final double[] recentSquares = new double[RECENT_ERROR_SPAN * FPS];
+    private double recentSum;
+
+    /**
+     * @param target what to look at
+     * @param image the target for {@link Target#IMAGE}, ignored otherwise
+     */
+    public SimulatedDrone(Target target, BufferedImage image) {
+        this.target = target;
+        this.targetImage = target == Target.QR_CODE ? qrCode() : image;
+        if (target == Target.IMAGE && image == null) {
+            throw new IllegalArgumentException("An image target needs an image");
+        }
+        focal = (WIDTH / 2.0d) / Math.tan(Math.toRadians(HORIZONTAL_FOV / 2.0d));
+        panorama = room((int) (WIDTH * 360.0d / HORIZONTAL_FOV), HEIGHT);
+    }
+
+    private static BufferedImage qrCode() {
+        try {
+            return MatrixToImageWriter.toBufferedImage(new QRCodeWriter().encode("TOGApp", BarcodeFormat.QR_CODE, 256, 256));
+        } catch (WriterException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static BufferedImage room(int width, int height) {
+        BufferedImage room = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = room.createGraphics();
+        Random random = new Random(42L);
+        for (int y = 0; y < height; y += 8) {
+            for (int x = 0; x < width; x += 8) {
+                int v = 70 + (int) (40 * Math.sin(x * 2 * Math.PI / width * 6)) + random.nextInt(20);
+                g.setColor(new Color(v, v, Math.max(0, v - 15)));
+                g.fillRect(x, y, 8, 8);
+            }
+        }
+        g.dispose();
+        return room;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "simulated-drone");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::tick, 0, 1000 / FPS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    private void tick() {
+        try {
+            double dt = 1.0d / FPS;
+            int altitudeNow;
+            int batteryNow;
+            synchronized (this) {
+                step(dt);
+                altitudeNow = (int) altitude;
+                batteryNow = (int) battery;
+            }
+            // Navdata at a third of the frame rate
+            if (ticks % 3 == 0) {
+                altitudeListeners.forEach((listener) -> {
+                    listener.receivedAltitude(altitudeNow);
+                });
+                batteryListeners.forEach((listener) -> {
+                    listener.batteryLevelChanged(batteryNow);
+                });
+            }
+            ImageListener listener = imageListener;
+            if (listener != null) {
+                listener.imageUpdated(render());
+            }
+        } catch (Exception e) {
+            System.err.println("Exception in the simulated drone: " + e);
+        }
+    }
+
+    private void step(double dt) {
+        long now = System.currentTimeMillis();
+        elapsed += dt;
+        ticks++;
+        if (flying) {
+            if (now < yawUntil) {
+                yaw = (yaw + yawRate * dt + 360.0d) % 360.0d;
+            }
+            double climb = now < verticalUntil ? verticalSpeed : 0.0d;
+            altitude = Math.max(0.0d, Math.min(Config.MAX_ALTITUDE, altitude + climb * dt));
+            battery = Math.max(0.0d, battery - BATTERY_DRAIN * dt);
+            // Tracking error: angle between the camera axis and the target
+            double error = Math.hypot(azimuthError(), elevationError());
+            int slot = (int) (errorSamples % recentSquares.length);
+            recentSum += error * error - recentSquares[slot];
+            recentSquares[slot] = error * error;
+            errorSamples++;
+            errorSquares += error * error;
+            maxError = Math.max(maxError, error);
+        }
+    }
+
+    private double targetAzimuth() {
+        return TARGET_AZIMUTH_AMPLITUDE * Math.sin(2 * Math.PI * elapsed / TARGET_AZIMUTH_PERIOD);
+    }
+
+    private double targetHeight() {
+        return TAKE_OFF_ALTITUDE + TARGET_HEIGHT_AMPLITUDE * Math.sin(2 * Math.PI * elapsed / TARGET_HEIGHT_PERIOD);
+    }
+
+    // Target direction relative to the camera axis, in degrees
+    private double azimuthError() {
+        return ((targetAzimuth() - yaw) % 360.0d + 540.0d) % 360.0d - 180.0d;
+    }
+
+    private double elevationError() {
+        return Math.toDegrees(Math.atan2(targetHeight() - altitude, TARGET_DISTANCE));
+    }
+
+    private BufferedImage render() {
+        double offset;
+        double x;
+        double y;
+        synchronized (this) {
+            offset = yaw / 360.0d * panorama.getWidth();
+            x = WIDTH / 2.0d + focal * Math.tan(Math.toRadians(azimuthError()));
+            y = HEIGHT / 2.0d - focal * Math.tan(Math.toRadians(elevationError()));
+        }
+        // A new image every frame: the consumer may still hold the previous one
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = frame.createGraphics();
+        int left = (int) (offset - WIDTH / 2.0d + panorama.getWidth()) % panorama.getWidth();
+        g.drawImage(panorama, -left, 0, null);
+        g.drawImage(panorama, panorama.getWidth() - left, 0, null);
+        int size = (int) (focal * (target == Target.QR_CODE ? QR_CODE_SIZE : TARGET_SIZE) / TARGET_DISTANCE);
+        int x0 = (int) x - size / 2;
+        int y0 = (int) y - size / 2;
+        if (target == Target.COLOR) {
+            // Yellow, as the preconfigured object
+            g.setColor(new Color(240, 220, 0));
+            g.fillOval(x0, y0, size, size);
+        } else {
+            g.drawImage(targetImage, x0, y0, size, size * targetImage.getHeight() / targetImage.getWidth(), null);
+        }
+        g.dispose();
+        return frame;
+    }
+
+    @Override
+    public synchronized void takeOff() {
+        flying = true;
+        verticalSpeed = MAX_VERTICAL_SPEED / 2;
+        verticalUntil = System.currentTimeMillis() + (long) (TAKE_OFF_ALTITUDE / verticalSpeed * 1000);
+    }
+
+    @Override
+    public synchronized void landing() {
+        verticalSpeed = -MAX_VERTICAL_SPEED / 2;
+        verticalUntil = System.currentTimeMillis() + (long) (altitude / -verticalSpeed * 1000);
+        flying = altitude > 0;
+    }
+
+    @Override
+    public synchronized void hover() {
+        yawUntil = 0;
+        verticalUntil = 0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        hover();
+        flying = false;
+        altitude = 0.0d;
+    }
+
+    /**
+     * The simulated drone cannot translate, so roll and pitch are ignored. As
+     * if the link were lost, the motion stops after {@link #MOVE_TIMEOUT}
+     * milliseconds without a new command.
+     */
+    @Override
+    public synchronized void move(int roll, int pitch, int vertical, int yaw) {
+        long until = System.currentTimeMillis() + MOVE_TIMEOUT;
+        yawRate = MAX_YAW_RATE * yaw / 100.0d;
+        yawUntil = until;
+        verticalSpeed = MAX_VERTICAL_SPEED * vertical / 100.0d;
+        verticalUntil = until;
+    }
+
+    @Override
+    public void addAltitudeListener(AltitudeListener listener) {
+        altitudeListeners.add(listener);
+    }
+
+    @Override
+    public void addBatteryListener(BatteryListener listener) {
+        batteryListeners.add(listener);
+    }
+
+    @Override
+    public FrameSource getCamera() {
+        return camera;
+    }
+
+    /**
+     * @return the root mean square angle between the camera axis and the
+     * target while flying, in degrees
+     */
+    public synchronized double getTrackingErrorRms() {
+        return errorSamples > 0 ? Math.sqrt(errorSquares / errorSamples) : 0.0d;
+    }
+
+    /**
+     * @return the root mean square angle between the camera axis and the
+     * target over the last {@link #RECENT_ERROR_SPAN} seconds flying, in
+     * degrees; it drops toward zero once the tracker has locked on
+     */
+    public synchronized double getRecentTrackingErrorRms() {
+        int samples = (int) Math.min(errorSamples, recentSquares.length);
+        return samples > 0 ? Math.sqrt(Math.max(0.0d, recentSum) / samples) : 0.0d;
+    }
+
+    /**
+     * @return the largest angle between the camera axis and the target while
+     * flying, in degrees
+     */
+    public synchronized double getTrackingErrorMax() {
+        return maxError;
+    }
+
+    /**
+     * Frames rendered by the simulation.
+     */
+    private class Camera implements FrameSource {
+
+        @Override
+        public void start(ImageListener listener) {
+            imageListener = listener;
+        }
+
+        @Override
+        public void stop() {
+            imageListener = null;
+        }
+    }
+}
+
+// EOF
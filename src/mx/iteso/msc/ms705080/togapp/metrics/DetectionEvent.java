@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Result of the detection stage for a frame.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@Name("mx.iteso.msc.ms705080.togapp.Detection")
+@Label("Detection")
+@Category({"TOGApp", "Video"})
+class DetectionEvent extends Event {
+
+    @Label("Frame")
+    @Description("Sequence number of the frame")
+    long sequence;
+
+    @Label("Process Type")
+    String processType;
+
+    @Label("Found")
+    boolean found;
+
+    @Label("X")
+    @Description("Center of the object, in pixels")
+    double x;
+
+    @Label("Y")
+    @Description("Center of the object, in pixels")
+    double y;
+
+    static void emit(long sequence, String processType, boolean found, double x, double y) {
+        DetectionEvent event = new DetectionEvent();
+        if (event.isEnabled()) {
+            event.sequence = sequence;
+            event.processType = processType;
+            event.found = found;
+            event.x = x;
+            event.y = y;
+            event.commit();
+        }
+    }
+}
+
+// EOF
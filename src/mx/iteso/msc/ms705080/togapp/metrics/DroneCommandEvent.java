@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+
+/**
+ * A command sent to the drone.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@Name("mx.iteso.msc.ms705080.togapp.DroneCommand")
+@Label("Drone Command")
+@Category({"TOGApp", "Control"})
+class DroneCommandEvent extends Event {
+
+    @Label("Frame")
+    @Description("Sequence number of the frame the command reacts to, 0 if not caused by a detection")
+    long sequence;
+
+    @Label("Command")
+    String command;
+
+    @Label("Roll")
+    @Description("Positive to the right")
+    @Percentage
+    double roll;
+
+    @Label("Pitch")
+    @Description("Positive forward")
+    @Percentage
+    double pitch;
+
+    @Label("Vertical Speed")
+    @Description("Positive up")
+    @Percentage
+    double vertical;
+
+    @Label("Yaw Rate")
+    @Description("Positive to the right")
+    @Percentage
+    double yaw;
+
+    static void emit(long sequence, String command, int roll, int pitch, int vertical, int yaw) {
+        DroneCommandEvent event = new DroneCommandEvent();
+        if (event.isEnabled()) {
+            event.sequence = sequence;
+            event.command = command;
+            event.roll = roll / 100.0d;
+            event.pitch = pitch / 100.0d;
+            event.vertical = vertical / 100.0d;
+            event.yaw = yaw / 100.0d;
+            event.commit();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+/**
+ * Live view of the drone manager: frames, object tracker loop, latency and
+ * navdata. Times are in milliseconds.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public interface DroneManagerMXBean {
+
+    long getFramesReceived();
+
+    long getFramesDropped();
+
+    long getFramesDuplicated();
+
+    long getFramesProcessed();
+
+    /**
+     * @return frames processed per second, over the last second
+     */
+    double getProcessingFps();
+
+    double getFrameAgeP50();
+
+    double getFrameAgeP99();
+
+    long getTrackerRuns();
+
+    double getTrackerJitterP99();
+
+    double getTrackerJitterMax();
+
+    long getCommandsSent();
+
+    /**
+     * @return movement setpoints replaced before being sent
+     */
+    long getCommandsSuperseded();
+
+    double getCommandLatencyP50();
+
+    double getCommandLatencyP99();
+
+    double getCommandLatencyMax();
+
+    /**
+     * @return distance between the predicted and the detected target
+     * centers, in pixels
+     */
+    double getPredictionErrorRms();
+
+    double getPredictionErrorMax();
+
+    int getAltitude();
+
+    int getBatteryLevel();
+
+    boolean isActive();
+
+    boolean isTracking();
+}
+
+// EOF
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+/**
+ * Java Flight Recorder events of the whole chain from a frame to the drone
+ * command it caused, linked by the frame sequence number. Start a recording
+ * with {@code -XX:StartFlightRecording} (or from JMC) and look for the
+ * TOGApp category.
+ * <p>
+ * JFR is only available on JDK 8u262 and later; on older JVMs the calls do
+ * nothing and the event classes are never loaded. Disabled events cost a
+ * check per call.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class FlightRecorderEvents {
+
+    private static final boolean AVAILABLE = available();
+
+    private FlightRecorderEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param sequence the frame
+     * @param width its width
+     * @param height its height
+     */
+    public static void frameArrived(long sequence, int width, int height) {
+        if (AVAILABLE) {
+            FrameArrivedEvent.emit(sequence, width, height);
+        }
+    }
+
+    /**
+     * A stage starts on the current thread.
+     */
+    public static void stageStarted() {
+        if (AVAILABLE) {
+            FrameStageEvent.start();
+        }
+    }
+
+    /**
+     * The stage of the current thread finished, and the next one starts.
+     *
+     * @param stage the stage that finished
+     * @param sequence the frame
+     */
+    public static void stage(Stage stage, long sequence) {
+        if (AVAILABLE) {
+            FrameStageEvent.emit(stage, sequence);
+        }
+    }
+
+    /**
+     * @param sequence the frame
+     * @param processType the algorithm
+     * @param found whether the object was found
+     * @param x center of the object, if found
+     * @param y center of the object, if found
+     */
+    public static void detection(long sequence, String processType, boolean found, double x, double y) {
+        if (AVAILABLE) {
+            DetectionEvent.emit(sequence, processType, found, x, y);
+        }
+    }
+
+    /**
+     * Error, integral, derivative and output on each axis.
+     *
+     * @param sequence the frame the detection came from
+     */
+    public static void pid(long sequence, double xError, double xIntegral, double xDerivative, double xOutput,
+            double yError, double yIntegral, double yDerivative, double yOutput) {
+        if (AVAILABLE) {
+            PidEvent.emit(sequence, xError, xIntegral, xDerivative, xOutput, yError, yIntegral, yDerivative, yOutput);
+        }
+    }
+
+    /**
+     * @param sequence the frame the command reacts to, 0 if not caused by a detection
+     * @param command the command
+     */
+    public static void command(long sequence, String command) {
+        if (AVAILABLE) {
+            DroneCommandEvent.emit(sequence, command, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Speeds as percentages, see
+     * {@link mx.iteso.msc.ms705080.togapp.drone.DroneController#move}.
+     *
+     * @param sequence the frame the command reacts to
+     */
+    public static void move(long sequence, int roll, int pitch, int vertical, int yaw) {
+        if (AVAILABLE) {
+            DroneCommandEvent.emit(sequence, "MOVE", roll, pitch, vertical, yaw);
+        }
+    }
+}
+
+// EOF
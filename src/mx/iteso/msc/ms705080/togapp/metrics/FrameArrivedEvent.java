@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A frame was received from the camera or the recording.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@Name("mx.iteso.msc.ms705080.togapp.FrameArrived")
+@Label("Frame Arrived")
+@Category({"TOGApp", "Video"})
+class FrameArrivedEvent extends Event {
+
+    @Label("Frame")
+    @Description("Sequence number of the frame")
+    long sequence;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    static void emit(long sequence, int width, int height) {
+        FrameArrivedEvent event = new FrameArrivedEvent();
+        if (event.isEnabled()) {
+            event.sequence = sequence;
+            event.width = width;
+            event.height = height;
+            event.commit();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A processing {@link Stage} of a frame. The event begins when the stage
+ * starts and is committed when it ends, so its duration is the one of the
+ * stage. Stages of a thread follow each other: the end of one is the start
+ * of the next.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@Name("mx.iteso.msc.ms705080.togapp.FrameStage")
+@Label("Frame Stage")
+@Category({"TOGApp", "Video"})
+class FrameStageEvent extends Event {
+
+    // Stage in progress on each thread
+    private static final ThreadLocal<FrameStageEvent> CURRENT = new ThreadLocal<>();
+
+    @Label("Frame")
+    @Description("Sequence number of the frame")
+    long sequence;
+
+    @Label("Stage")
+    String stage;
+
+    static void start() {
+        FrameStageEvent event = new FrameStageEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            CURRENT.set(event);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    static void emit(Stage stage, long sequence) {
+        FrameStageEvent event = CURRENT.get();
+        if (event != null) {
+            event.end();
+            event.sequence = sequence;
+            event.stage = stage.name();
+            event.commit();
+        }
+        start();
+    }
+}
+
+// EOF
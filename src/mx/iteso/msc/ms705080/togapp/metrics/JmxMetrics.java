@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import mx.iteso.msc.ms705080.togapp.DroneManager;
+import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor;
+
+/**
+ * Publishes the metrics of a {@link DroneManager} and its
+ * {@link VideoProcessor} on the platform MBean server, for JConsole, VisualVM
+ * or any JMX client. The beans only read counters and histograms the
+ * processing updates anyway, so they cost nothing until somebody looks.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class JmxMetrics {
+
+    private static final String DOMAIN = "mx.iteso.msc.ms705080.togapp";
+
+    private JmxMetrics() {
+    }
+
+    /**
+     * Registers the beans. Failures are reported and otherwise ignored, the
+     * application runs the same without them.
+     *
+     * @param dm the drone manager
+     */
+    public static void register(DroneManager dm) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new DroneManagerBean(dm), new ObjectName(DOMAIN + ":type=DroneManager"));
+            server.registerMBean(new VideoProcessorBean(dm), new ObjectName(DOMAIN + ":type=VideoProcessor"));
+        } catch (JMException e) {
+            System.err.println("Exception registering the metrics: " + e);
+        }
+    }
+
+    private static class DroneManagerBean implements DroneManagerMXBean {
+
+        private final DroneManager dm;
+
+        DroneManagerBean(DroneManager dm) {
+            this.dm = dm;
+        }
+
+        @Override
+        public long getFramesReceived() {
+            return dm.getFramesReceived();
+        }
+
+        @Override
+        public long getFramesDropped() {
+            return dm.getFramesDropped();
+        }
+
+        @Override
+        public long getFramesDuplicated() {
+            return dm.getFramesDuplicated();
+        }
+
+        @Override
+        public long getFramesProcessed() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            return vp != null ? vp.getFramesProcessed() : 0;
+        }
+
+        @Override
+        public double getProcessingFps() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            return vp != null ? vp.getProcessingFps() : 0.0d;
+        }
+
+        @Override
+        public double getFrameAgeP50() {
+            return dm.getFrameAge().getP50();
+        }
+
+        @Override
+        public double getFrameAgeP99() {
+            return dm.getFrameAge().getP99();
+        }
+
+        @Override
+        public long getTrackerRuns() {
+            return dm.getTrackerRuns();
+        }
+
+        @Override
+        public double getTrackerJitterP99() {
+            return dm.getTrackerJitter().getP99();
+        }
+
+        @Override
+        public double getTrackerJitterMax() {
+            return dm.getTrackerJitter().getMax();
+        }
+
+        @Override
+        public long getCommandsSent() {
+            return dm.getCommandsSent();
+        }
+
+        @Override
+        public long getCommandsSuperseded() {
+            return dm.getCommandsSuperseded();
+        }
+
+        @Override
+        public double getCommandLatencyP50() {
+            return dm.getCommandLatency().getP50();
+        }
+
+        @Override
+        public double getCommandLatencyP99() {
+            return dm.getCommandLatency().getP99();
+        }
+
+        @Override
+        public double getCommandLatencyMax() {
+            return dm.getCommandLatency().getMax();
+        }
+
+        @Override
+        public double getPredictionErrorRms() {
+            return dm.getTargetEstimator().getPredictionErrorRms();
+        }
+
+        @Override
+        public double getPredictionErrorMax() {
+            return dm.getTargetEstimator().getPredictionErrorMax();
+        }
+
+        @Override
+        public int getAltitude() {
+            return dm.getCurrentAltitude();
+        }
+
+        @Override
+        public int getBatteryLevel() {
+            return dm.getBatteryLevel();
+        }
+
+        @Override
+        public boolean isActive() {
+            return dm.isDroneActive();
+        }
+
+        @Override
+        public boolean isTracking() {
+            return dm.isDroneTracking();
+        }
+    }
+
+    /**
+     * Follows whatever processor the manager has at the moment.
+     */
+    private static class VideoProcessorBean implements VideoProcessorMXBean {
+
+        private final DroneManager dm;
+
+        VideoProcessorBean(DroneManager dm) {
+            this.dm = dm;
+        }
+
+        @Override
+        public String getProcessType() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            if (vp == null) {
+                return null;
+            }
+            return vp.getEnsemble().isEmpty() ? String.valueOf(vp.getType()) : "ENSEMBLE " + vp.getEnsemble();
+        }
+
+        @Override
+        public String getExecutionMode() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            return vp != null ? vp.getExecutionMode().name() : null;
+        }
+
+        @Override
+        public long getFramesProcessed() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            return vp != null ? vp.getFramesProcessed() : 0;
+        }
+
+        @Override
+        public long getFramesDetected() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            return vp != null ? vp.getFramesDetected() : 0;
+        }
+
+        @Override
+        public double getDetectionRate() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            if (vp == null) {
+                return 0.0d;
+            }
+            // Detections first, so the rate never goes above 1
+            long detected = vp.getFramesDetected();
+            long processed = vp.getFramesProcessed();
+            return processed > 0 ? detected / (double) processed : 0.0d;
+        }
+
+        @Override
+        public Map<String, Double> getStageMean() {
+            return stages(LatencyHistogram::getMean);
+        }
+
+        @Override
+        public Map<String, Double> getStageP99() {
+            return stages(LatencyHistogram::getP99);
+        }
+
+        @Override
+        public Map<String, Double> getStageMax() {
+            return stages(LatencyHistogram::getMax);
+        }
+
+        private Map<String, Double> stages(ToDoubleFunction<LatencyHistogram> value) {
+            Map<String, Double> stages = new LinkedHashMap<>();
+            VideoProcessor vp = dm.getVideoProcessor();
+            if (vp != null) {
+                for (Stage stage : Stage.values()) {
+                    stages.put(stage.name(), value.applyAsDouble(vp.getStageTimings().get(stage)));
+                }
+            }
+            return stages;
+        }
+
+        @Override
+        public void resetStageTimings() {
+            VideoProcessor vp = dm.getVideoProcessor();
+            if (vp != null) {
+                vp.getStageTimings().reset();
+            }
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are logarithmic,
+ * eight per power of two, so percentiles are within about 12% of the real
+ * value at any scale; recording is one bucket increment plus an update of
+ * the count, sum and max, all without locks.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class LatencyHistogram {
+
+    // Sub-buckets per power of two, as bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos the duration to add
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    // Smallest value that falls in a bucket
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BITS) - 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the average duration, in milliseconds
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n > 0 ? sum.sum() / (double) n / NANOS_PER_MILLI : 0.0d;
+    }
+
+    /**
+     * @return the longest duration, in milliseconds
+     */
+    public double getMax() {
+        return max.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @param fraction the percentile, between 0 and 1
+     * @return the duration below which the given fraction of the durations
+     * fall (middle of its bucket), in milliseconds
+     */
+    public double getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0.0d;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                double upper = i + 1 < BUCKETS ? lowerBound(i + 1) : Long.MAX_VALUE;
+                double middle = (lowerBound(i) + upper) / 2.0d;
+                // Never above the largest duration actually seen
+                return Math.min(middle, max.get()) / NANOS_PER_MILLI;
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return the median, in milliseconds
+     */
+    public double getP50() {
+        return getPercentile(0.50d);
+    }
+
+    /**
+     * @return the 99th percentile, in milliseconds
+     */
+    public double getP99() {
+        return getPercentile(0.99d);
+    }
+
+    /**
+     * Forgets every duration recorded. Durations recorded concurrently may
+     * partially survive.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.2f p99=%.2f max=%.2f ms", getCount(), getP50(), getP99(), getMax());
+    }
+}
+
+// EOF
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One computation of the PID controller, on both axes.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+@Name("mx.iteso.msc.ms705080.togapp.Pid")
+@Label("PID Computation")
+@Category({"TOGApp", "Control"})
+class PidEvent extends Event {
+
+    @Label("Frame")
+    @Description("Sequence number of the frame the detection came from")
+    long sequence;
+
+    @Label("X Error")
+    double xError;
+
+    @Label("X Integral")
+    double xIntegral;
+
+    @Label("X Derivative")
+    double xDerivative;
+
+    @Label("X Output")
+    double xOutput;
+
+    @Label("Y Error")
+    double yError;
+
+    @Label("Y Integral")
+    double yIntegral;
+
+    @Label("Y Derivative")
+    double yDerivative;
+
+    @Label("Y Output")
+    double yOutput;
+
+    static void emit(long sequence, double xError, double xIntegral, double xDerivative, double xOutput,
+            double yError, double yIntegral, double yDerivative, double yOutput) {
+        PidEvent event = new PidEvent();
+        if (event.isEnabled()) {
+            event.sequence = sequence;
+            event.xError = xError;
+            event.xIntegral = xIntegral;
+            event.xDerivative = xDerivative;
+            event.xOutput = xOutput;
+            event.yError = yError;
+            event.yIntegral = yIntegral;
+            event.yDerivative = yDerivative;
+            event.yOutput = yOutput;
+            event.commit();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event rate over fixed time windows, e.g. frames per second. Events are
+ * counted by the threads that produce them, and the first event after a
+ * window ends closes it and publishes its rate; reading the rate is a plain
+ * read, so any number of readers see the same value whenever they look.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class RateMeter {
+
+    private final long windowNanos;
+    // Events in the current window, and when it started
+    private final LongAdder current = new LongAdder();
+    private final AtomicLong windowStart;
+    // Rate over the last complete window, per second, and when that window ended
+    private volatile double rate;
+    private volatile long rateEnd;
+
+    /**
+     * @param window length of the windows
+     * @param unit unit of the window length
+     */
+    public RateMeter(long window, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(window);
+        long now = System.nanoTime();
+        windowStart = new AtomicLong(now);
+        rateEnd = now;
+    }
+
+    /**
+     * Counts one event.
+     */
+    public void mark() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+            rate = current.sumThenReset() * 1e9 / (now - start);
+            rateEnd = now;
+        }
+        current.increment();
+    }
+
+    /**
+     * @return the events per second over the last complete window, or 0 if
+     * no event closed a window for two windows (the events stopped)
+     */
+    public double getRate() {
+        long end = rateEnd;
+        return System.nanoTime() - end < 2 * windowNanos ? rate : 0.0d;
+    }
+}
+
+// EOF
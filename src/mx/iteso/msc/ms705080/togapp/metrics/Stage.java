@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+/**
+ * Steps of the frame processing whose duration is recorded.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public enum Stage {
+    // Image to Mat conversion
+    LOAD,
+    // Noise reduction (color pipelines)
+    BLUR,
+    // Color space conversion, or gray scale for the face and QR pipelines
+    COLOR,
+    // Thresholding to the object mask
+    THRESHOLD,
+    // Erosion and dilation of the mask
+    MORPHOLOGY,
+    // Locating the object: blobs, cascade, QR decoding or tracking
+    DETECTION,
+    // Mat to image conversion of the previews
+    PREVIEW,
+    // Delivery of the images to the listeners
+    DISPATCH
+}
+
+// EOF
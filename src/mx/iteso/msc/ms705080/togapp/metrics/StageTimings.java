@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+/**
+ * One {@link LatencyHistogram} per processing {@link Stage}, also reported to
+ * the flight recorder. Meant to be used as a chain of timestamps:
+ * <pre>
+ * long t = timings.start();
+ * blur(...);
+ * t = timings.record(Stage.BLUR, t, sequence);
+ * convert(...);
+ * t = timings.record(Stage.COLOR, t, sequence);
+ * </pre>
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class StageTimings {
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    public StageTimings() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Marks the start of a stage that does not follow another one.
+     *
+     * @return the current System.nanoTime()
+     */
+    public long start() {
+        FlightRecorderEvents.stageStarted();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since the given timestamp.
+     *
+     * @param stage the stage that just finished
+     * @param start System.nanoTime() when it started, from {@link #start()}
+     * or the previous record
+     * @param sequence the frame it processed
+     * @return the current System.nanoTime(), the start of the next stage
+     */
+    public long record(Stage stage, long start, long sequence) {
+        long now = System.nanoTime();
+        histograms[stage.ordinal()].record(now - start);
+        FlightRecorderEvents.stage(stage, sequence);
+        return now;
+    }
+
+    /**
+     * @param stage the stage
+     * @return its durations
+     */
+    public LatencyHistogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = get(stage);
+            if (histogram.getCount() > 0) {
+                sb.append(String.format("%-10s %s%n", stage, histogram));
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// EOF
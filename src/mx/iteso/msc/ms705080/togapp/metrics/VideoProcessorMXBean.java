@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.metrics;
+
+import java.util.Map;
+
+/**
+ * Live view of the video processor: algorithm, detection rate and time per
+ * stage. Times are in milliseconds.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public interface VideoProcessorMXBean {
+
+    String getProcessType();
+
+    String getExecutionMode();
+
+    long getFramesProcessed();
+
+    long getFramesDetected();
+
+    /**
+     * @return the fraction of the processed frames the object was found in
+     */
+    double getDetectionRate();
+
+    Map<String, Double> getStageMean();
+
+    Map<String, Double> getStageP99();
+
+    Map<String, Double> getStageMax();
+
+    /**
+     * Starts the stage timings over, e.g. after changing a setting.
+     */
+    void resetStageTimings();
+}
+
+// EOF
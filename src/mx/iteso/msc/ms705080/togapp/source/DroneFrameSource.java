@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.source;
+
+import de.yadrone.base.IARDrone;
+import de.yadrone.base.video.ImageListener;
+
+/**
+ * Frames decoded from the drone video stream.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class DroneFrameSource implements FrameSource {
+
+    private final IARDrone drone;
+    private ImageListener listener;
+
+    public DroneFrameSource(IARDrone drone) {
+        this.drone = drone;
+    }
+
+    @Override
+    public void start(ImageListener listener) {
+        this.listener = listener;
+        drone.getVideoManager().addImageListener(listener);
+    }
+
+    @Override
+    public void stop() {
+        if (listener != null) {
+            drone.getVideoManager().removeImageListener(listener);
+            listener = null;
+        }
+    }
+}
+
+// EOF
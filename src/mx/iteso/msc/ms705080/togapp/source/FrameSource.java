@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.source;
+
+import de.yadrone.base.video.ImageListener;
+
+/**
+ * Where the frames come from: the live drone camera or a recording. A source
+ * pushes each frame to a listener from its own thread.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public interface FrameSource {
+
+    /**
+     * Starts delivering frames.
+     *
+     * @param listener receives every frame
+     */
+    void start(ImageListener listener);
+
+    /**
+     * Stops delivering frames.
+     */
+    void stop();
+
+    /**
+     * @return true if frames must not be replaced by newer ones before being
+     * processed, i.e. the consumer paces the source
+     */
+    default boolean isLossless() {
+        return false;
+    }
+}
+
+// EOF
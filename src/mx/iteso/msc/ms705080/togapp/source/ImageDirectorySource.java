@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.source;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Replays the images (PNG, JPEG, BMP) of a directory in file name order.
+ * Images carry no timestamps, so real time replay uses the given frame rate.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class ImageDirectorySource extends ReplayFrameSource {
+
+    private final File[] files;
+    private int next;
+
+    /**
+     * @param directory the directory holding the frames
+     * @param speed how fast to replay
+     * @param fps frame rate the frames were recorded at
+     * @throws IOException if the directory cannot be listed
+     */
+    public ImageDirectorySource(File directory, ReplaySpeed speed, double fps) throws IOException {
+        super(speed, fps);
+        files = directory.listFiles((File dir, String name) -> {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".bmp");
+        });
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+    }
+
+    @Override
+    protected BufferedImage nextFrame() throws IOException {
+        while (next < files.length) {
+            BufferedImage image = ImageIO.read(files[next++]);
+            if (image != null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected double frameTimeMillis() {
+        return -1.0d;
+    }
+
+    @Override
+    protected void close() {
+        // Nothing to release
+    }
+}
+
+// EOF
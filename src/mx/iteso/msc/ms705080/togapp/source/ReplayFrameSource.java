@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.source;
+
+import de.yadrone.base.video.ImageListener;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded frames from a thread of its own at the requested
+ * {@link ReplaySpeed}. Subclasses only read the frames.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public abstract class ReplayFrameSource implements FrameSource {
+
+    private final ReplaySpeed speed;
+    // Frame period for FIXED_RATE (and REAL_TIME when the recording has no timestamps)
+    private final long periodNanos;
+    private Thread thread;
+    private volatile boolean running;
+    // Frames delivered so far
+    private volatile long delivered;
+
+    /**
+     * @param speed how fast to replay
+     * @param fps frame rate for {@link ReplaySpeed#FIXED_RATE}, also used for
+     * {@link ReplaySpeed#REAL_TIME} when the recording has no timestamps
+     */
+    protected ReplayFrameSource(ReplaySpeed speed, double fps) {
+        this.speed = speed;
+        this.periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return the frame, or null at the end of the recording
+     * @throws Exception if the frame could not be read
+     */
+    protected abstract BufferedImage nextFrame() throws Exception;
+
+    /**
+     * @return the time of the last frame read from the start of the
+     * recording, in milliseconds, or a negative value if unknown
+     */
+    protected abstract double frameTimeMillis();
+
+    /**
+     * Releases the recording.
+     */
+    protected abstract void close();
+
+    @Override
+    public synchronized void start(ImageListener listener) {
+        running = true;
+        thread = new Thread(() -> replay(listener), "frame-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void replay(ImageListener listener) {
+        long start = System.nanoTime();
+        long frame = 0;
+        try {
+            BufferedImage image;
+            while (running && (image = nextFrame()) != null) {
+                if (speed != ReplaySpeed.AS_FAST_AS_POSSIBLE) {
+                    // Wait for the frame's turn
+                    double recorded = frameTimeMillis();
+                    long due = start + (speed == ReplaySpeed.REAL_TIME && recorded >= 0
+                            ? (long) (recorded * 1000000.0d) : frame * periodNanos);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                listener.imageUpdated(image);
+                frame++;
+                delivered = frame;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Exception while replaying frames: " + e);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public boolean isLossless() {
+        return speed == ReplaySpeed.AS_FAST_AS_POSSIBLE;
+    }
+
+    /**
+     * @return the speed
+     */
+    public ReplaySpeed getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return the number of frames delivered so far
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+}
+
+// EOF
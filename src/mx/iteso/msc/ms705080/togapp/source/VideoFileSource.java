@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Mario Contreras <marioc@nazul.net>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mx.iteso.msc.ms705080.togapp.source;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import mx.iteso.msc.ms705080.togapp.cv.Util;
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Replays a video file decoded by OpenCV. Real time replay follows the
+ * position of each frame in the file.
+ *
+ * @author Mario Contreras <marioc@nazul.net>
+ */
+public class VideoFileSource extends ReplayFrameSource {
+
+    // Used when the file does not tell its frame rate
+    private static final double DEFAULT_FPS = 30.0d;
+
+    private final VideoCapture capture;
+    private final Mat frame = new Mat();
+
+    /**
+     * @param file the video file
+     * @param speed how fast to replay
+     * @param fps frame rate for {@link ReplaySpeed#FIXED_RATE}, or 0 to use
+     * the one of the file
+     * @throws IOException if the file cannot be opened
+     */
+    public VideoFileSource(File file, ReplaySpeed speed, double fps) throws IOException {
+        this(open(file), speed, fps);
+    }
+
+    private VideoFileSource(VideoCapture capture, ReplaySpeed speed, double fps) {
+        super(speed, fps > 0 ? fps : fileFps(capture));
+        this.capture = capture;
+    }
+
+    private static VideoCapture open(File file) throws IOException {
+        VideoCapture capture = new VideoCapture(file.getPath());
+        if (!capture.isOpened()) {
+            throw new IOException("Cannot open " + file);
+        }
+        return capture;
+    }
+
+    private static double fileFps(VideoCapture capture) {
+        double fps = capture.get(Videoio.CAP_PROP_FPS);
+        return fps > 0 ? fps : DEFAULT_FPS;
+    }
+
+    @Override
+    protected BufferedImage nextFrame() {
+        if (!capture.read(frame) || frame.empty()) {
+            return null;
+        }
+        // A new image every frame: the consumer may still hold the previous one
+        return Util.Mat2Image(frame);
+    }
+
+    @Override
+    protected double frameTimeMillis() {
+        return capture.get(Videoio.CAP_PROP_POS_MSEC);
+    }
+
+    @Override
+    protected void close() {
+        capture.release();
+        frame.release();
+    }
+}
+
+// EOF
@@ -20,13 +20,17 @@ import de.yadrone.base.navdata.AltitudeListener;
 import de.yadrone.base.navdata.BatteryListener;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.util.List;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import mx.iteso.msc.ms705080.togapp.DroneManager;
 import mx.iteso.msc.ms705080.togapp.TrackedObject;
 import mx.iteso.msc.ms705080.togapp.TrackedObjectColor;
 import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor;
+import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor.PreviewOutput;
 import mx.iteso.msc.ms705080.togapp.cv.VideoProcessor.ProcessType;
 import org.jfree.chart.ChartPanel;
 
@@ -67,6 +71,19 @@ public class MainForm extends javax.swing.JFrame {
         vp = new VideoProcessor(dm, cameraPanel.getWidth(), cameraPanel.getHeight());
         dm.setVideoProcessor(vp);
         vp.setType(ProcessType.COLOR_HSV);
+        // Camera panel plus the three process panels, only made while the window shows them
+        showPreviews(true);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowIconified(WindowEvent e) {
+                showPreviews(false);
+            }
+
+            @Override
+            public void windowDeiconified(WindowEvent e) {
+                showPreviews(true);
+            }
+        });
 
         // Update status bar & radio buttons
         slidersStateChanged(null);
@@ -99,19 +116,34 @@ public class MainForm extends javax.swing.JFrame {
             }
         });
         vp.addListener((int chMin1, int chMin2, int chMin3, int chMax1, int chMax2, int chMax3) -> {
-            vpChannelsUpdated(chMin1, chMin2, chMin3, chMax1, chMax2, chMax3);
+            // Called from the processing thread, which must not wait for the UI
+            SwingUtilities.invokeLater(() -> {
+                vpChannelsUpdated(chMin1, chMin2, chMin3, chMax1, chMax2, chMax3);
+            });
         });
     }
 
+    private void showPreviews(boolean show) {
+        for (PreviewOutput output : PreviewOutput.values()) {
+            if (show) {
+                vp.subscribe(output);
+            } else {
+                vp.unsubscribe(output);
+            }
+        }
+    }
+
     private void dmImageUpdated(List<BufferedImage> images) {
-        cameraPanel.getGraphics().drawImage(images.get(0), 0, 0, 640, 360, null);
-        if (images.size() > 1) {
+        if (images.size() > 0 && images.get(0) != null) {
+            cameraPanel.getGraphics().drawImage(images.get(0), 0, 0, 640, 360, null);
+        }
+        if (images.size() > 1 && images.get(1) != null) {
             hsvPanel.getGraphics().drawImage(images.get(1), 0, 0, 213, 120, null);
         }
-        if (images.size() > 2) {
+        if (images.size() > 2 && images.get(2) != null) {
             erodePanel.getGraphics().drawImage(images.get(2), 0, 0, 213, 120, null);
         }
-        if (images.size() > 3) {
+        if (images.size() > 3 && images.get(3) != null) {
             dilatePanel.getGraphics().drawImage(images.get(3), 0, 0, 213, 120, null);
         }
     }